@@ -16,27 +16,75 @@
 
 package com.cyanogenmod.setupwizard.setup;
 
+import android.app.FragmentManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
 
+import com.cyanogenmod.setupwizard.util.FinishPipeline;
+
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class AbstractSetupData extends BroadcastReceiver implements SetupDataCallbacks {
     private static final String TAG = AbstractSetupData.class.getSimpleName();
 
+    private static final String PAGE_FLOW_FILE = "page_flow.tsv";
+
+    // Shared by all pages to load their data, kept apart from the AsyncTask pool
+    static final Executor DATA_LOAD_EXECUTOR;
+
+    static {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "PageDataLoader #" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        DATA_LOAD_EXECUTOR = executor;
+    }
+
     protected final Context mContext;
     private ArrayList<SetupDataCallbacks> mListeners = new ArrayList<>();
     private PageList mPageList;
 
     private int mCurrentPageIndex = 0;
 
+    // Index of the closest visible page after/before each position, -1 if none
+    private int[] mNextVisible;
+    private int[] mPrevVisible;
+    private int mLastVisibleIndex = -1;
+    private boolean mVisibilityDirty = true;
+
     private boolean mIsResumed = false;
 
     private boolean mIsFinished = false;
 
     private OnResumeRunnable mOnResumeRunnable;
 
+    private ProgressJournal mJournal;
+
+    private final PageFlowTrace mTrace = new PageFlowTrace();
+    private boolean mEnteredFirstPage = false;
+
+    // Most recently preloaded pages first, capped to bound the views held in memory
+    private static final int MAX_PRELOADED_PAGES = 2;
+    private final ArrayDeque<Page> mPreloadedPages = new ArrayDeque<>(MAX_PRELOADED_PAGES + 1);
+
     public AbstractSetupData(Context context) {
         mContext = context;
         mPageList = onNewPageList();
@@ -58,6 +106,18 @@ public abstract class AbstractSetupData extends BroadcastReceiver implements Set
         }
     }
 
+    @Override
+    public void onPageHiddenChanged(Page page) {
+        mVisibilityDirty = true;
+        mTrace.pageHiddenChanged(page);
+        if (mJournal != null) {
+            mJournal.recordHidden(page);
+        }
+        for (int i = 0; i < mListeners.size(); i++) {
+            mListeners.get(i).onPageHiddenChanged(page);
+        }
+    }
+
     @Override
     public void onFinish() {
         for (int i = 0; i < mListeners.size(); i++) {
@@ -96,7 +156,8 @@ public abstract class AbstractSetupData extends BroadcastReceiver implements Set
     }
 
     public boolean isLastPage() {
-        return mCurrentPageIndex == mPageList.size() - 1;
+        ensureVisibilityTable();
+        return mCurrentPageIndex >= mLastVisibleIndex;
     }
 
     @Override
@@ -104,8 +165,13 @@ public abstract class AbstractSetupData extends BroadcastReceiver implements Set
         Runnable runnable = new Runnable() {
             @Override
             public void run() {
-                if (!getCurrentPage().doNextAction()) {
+                final int previousIndex = mCurrentPageIndex;
+                final Page previous = getCurrentPage();
+                if (!previous.doNextAction()) {
                     if (advanceToNextUnhidden()) {
+                        traceNavigation(previousIndex, true);
+                        recordProgress(previous);
+                        loadUpcomingData();
                         for (int i = 0; i < mListeners.size(); i++) {
                             mListeners.get(i).onNextPage();
                         }
@@ -121,8 +187,13 @@ public abstract class AbstractSetupData extends BroadcastReceiver implements Set
         Runnable runnable = new Runnable() {
             @Override
             public void run() {
-                if (!getCurrentPage().doPreviousAction()) {
+                final int previousIndex = mCurrentPageIndex;
+                final Page previous = getCurrentPage();
+                if (!previous.doPreviousAction()) {
                     if (advanceToPreviousUnhidden()) {
+                        traceNavigation(previousIndex, false);
+                        recordProgress(previous);
+                        loadUpcomingData();
                         for (int i = 0; i < mListeners.size(); i++) {
                             mListeners.get(i).onPreviousPage();
                         }
@@ -133,24 +204,144 @@ public abstract class AbstractSetupData extends BroadcastReceiver implements Set
         doPreviousNext(runnable);
     }
 
+    private void traceNavigation(int previousIndex, boolean next) {
+        final Page previous = mPageList.getPage(previousIndex);
+        mTrace.navigated(previous, next);
+        mTrace.pageExited(previous);
+        // Hidden pages jumped over on the way
+        final int step = next ? 1 : -1;
+        for (int i = previousIndex + step; i != mCurrentPageIndex; i += step) {
+            mTrace.pageSkipped(mPageList.getPage(i));
+        }
+        mTrace.pageEntered(getCurrentPage());
+    }
+
     private boolean advanceToNextUnhidden() {
-        while (mCurrentPageIndex < mPageList.size()) {
-            mCurrentPageIndex++;
-            if (!getCurrentPage().isHidden()) {
-                return true;
-            }
+        ensureVisibilityTable();
+        final int next = mNextVisible[mCurrentPageIndex];
+        if (next == -1) {
+            return false;
         }
-        return false;
+        mCurrentPageIndex = next;
+        return true;
     }
 
     private boolean advanceToPreviousUnhidden() {
-        while (mCurrentPageIndex > 0) {
-            mCurrentPageIndex--;
-            if (!getCurrentPage().isHidden()) {
-                return true;
+        ensureVisibilityTable();
+        final int previous = mPrevVisible[mCurrentPageIndex];
+        if (previous == -1) {
+            return false;
+        }
+        mCurrentPageIndex = previous;
+        return true;
+    }
+
+    private void ensureVisibilityTable() {
+        final int size = mPageList.size();
+        if (!mVisibilityDirty && mNextVisible != null && mNextVisible.length == size) {
+            return;
+        }
+        if (mNextVisible == null || mNextVisible.length != size) {
+            mNextVisible = new int[size];
+            mPrevVisible = new int[size];
+        }
+        int visible = -1;
+        for (int i = 0; i < size; i++) {
+            mPrevVisible[i] = visible;
+            if (!mPageList.getPage(i).isHidden()) {
+                visible = i;
+            }
+        }
+        mLastVisibleIndex = visible;
+        visible = -1;
+        for (int i = size - 1; i >= 0; i--) {
+            mNextVisible[i] = visible;
+            if (!mPageList.getPage(i).isHidden()) {
+                visible = i;
+            }
+        }
+        mVisibilityDirty = false;
+    }
+
+    /**
+     * Starts loading the data of the current and every following visible page, nearest
+     * first, so it is usually ready by the time the user gets there. Pages already loaded or
+     * loading are left alone.
+     */
+    public void loadUpcomingData() {
+        getCurrentPage().loadData(DATA_LOAD_EXECUTOR);
+        ensureVisibilityTable();
+        for (int next = mNextVisible[mCurrentPageIndex]; next != -1;
+                next = mNextVisible[next]) {
+            mPageList.getPage(next).loadData(DATA_LOAD_EXECUTOR);
+        }
+    }
+
+    /**
+     * Builds the fragment of the next visible page ahead of time, so moving forward only has
+     * to swap in an already inflated view.
+     */
+    public void preloadNextPage(FragmentManager fragmentManager, LayoutInflater inflater,
+            ViewGroup container) {
+        // The current page consumed its preloaded fragment, if any
+        mPreloadedPages.remove(getCurrentPage());
+        ensureVisibilityTable();
+        final int next = mNextVisible[mCurrentPageIndex];
+        if (next == -1) {
+            return;
+        }
+        final Page page = mPageList.getPage(next);
+        final boolean alreadyPreloaded = mPreloadedPages.remove(page);
+        if (page.preload(fragmentManager, inflater, container) || alreadyPreloaded) {
+            mPreloadedPages.addFirst(page);
+        }
+        while (mPreloadedPages.size() > MAX_PRELOADED_PAGES) {
+            mPreloadedPages.removeLast().releasePreload();
+        }
+    }
+
+    public void releasePreloadedPages() {
+        while (!mPreloadedPages.isEmpty()) {
+            mPreloadedPages.removeFirst().releasePreload();
+        }
+    }
+
+    /**
+     * Restores the progress recorded by the journal and keeps recording into it from now on.
+     */
+    protected void restoreProgress(ProgressJournal journal) {
+        final ProgressJournal.State state = journal.replay();
+        if (state != null) {
+            mTrace.setCause(PageFlowTrace.CAUSE_RESTORE);
+            for (Map.Entry<String, Bundle> entry : state.data.entrySet()) {
+                Page page = mPageList.getPage(entry.getKey());
+                if (page != null) {
+                    page.resetData(entry.getValue());
+                }
+            }
+            for (Map.Entry<String, Boolean> entry : state.hidden.entrySet()) {
+                Page page = mPageList.getPage(entry.getKey());
+                if (page != null) {
+                    page.setHidden(entry.getValue());
+                }
+            }
+            for (int i = 0; i < mPageList.size(); i++) {
+                Page page = mPageList.getPage(i);
+                if (page.getKey().equals(state.currentPage) && !page.isHidden()) {
+                    mCurrentPageIndex = i;
+                    break;
+                }
             }
+            mTrace.setCause(null);
+        }
+        mJournal = journal;
+    }
+
+    private void recordProgress(Page previous) {
+        if (mJournal != null) {
+            mJournal.recordData(previous);
+            mJournal.recordCurrentPage(getCurrentPage());
         }
-        return false;
     }
 
     public void load(Bundle savedValues) {
@@ -172,14 +363,43 @@ public abstract class AbstractSetupData extends BroadcastReceiver implements Set
 
     public void onDestroy() {
         mOnResumeRunnable = null;
+        // Preloaded views belong to the activity being destroyed
+        releasePreloadedPages();
+    }
+
+    /**
+     * Writes out the journal once this instance is not carried over to another activity,
+     * e.g. across a configuration change. The journal itself lives as long as the process.
+     */
+    public void release() {
+        if (mJournal != null) {
+            mJournal.flush();
+            mJournal = null;
+        }
+        for (Page page : mPageList.values()) {
+            page.release();
+        }
     }
 
     public void onPause() {
         mIsResumed = false;
+        if (mJournal != null) {
+            // Pages change their data in place, catch up before we may get killed
+            for (Page page : mPageList.values()) {
+                mJournal.recordData(page);
+            }
+            mJournal.flush();
+        }
     }
 
     public void onResume() {
         mIsResumed = true;
+        if (!mEnteredFirstPage) {
+            mEnteredFirstPage = true;
+            mTrace.setCause(null);
+            mTrace.pageEntered(getCurrentPage());
+        }
+        loadUpcomingData();
         if (mOnResumeRunnable != null) {
             mOnResumeRunnable.run();
         }
@@ -187,18 +407,34 @@ public abstract class AbstractSetupData extends BroadcastReceiver implements Set
 
     public void finishPages() {
         mIsFinished = true;
+        if (mJournal != null) {
+            mJournal.clear();
+            mJournal = null;
+        }
         for (Page page : mPageList.values()) {
             page.onFinishSetup();
         }
     }
 
     @Override
-    public void addFinishRunnable(Runnable runnable) {
+    public void addFinishTask(FinishPipeline.Task task) {
         for (int i = 0; i < mListeners.size(); i++) {
-            mListeners.get(i).addFinishRunnable(runnable);
+            mListeners.get(i).addFinishTask(task);
         }
     }
 
+    protected PageFlowTrace getPageFlowTrace() {
+        return mTrace;
+    }
+
+    /**
+     * Writes the page flow of this setup run to the files directory.
+     */
+    public void exportPageFlow() {
+        mTrace.pageExited(getCurrentPage());
+        mTrace.export(new File(mContext.getFilesDir(), PAGE_FLOW_FILE));
+    }
+
     public boolean isFinished() {
         return mIsFinished;
     }
@@ -82,6 +82,12 @@ public class BluetoothSetupPage extends SetupPage {
     }
 
 
+    @Override
+    protected boolean isPreloadable() {
+        // Launches an external activity from its loading fragment
+        return false;
+    }
+
     @Override
     public void doLoadAction(FragmentManager fragmentManager, int action) {
         super.doLoadAction(fragmentManager, action);
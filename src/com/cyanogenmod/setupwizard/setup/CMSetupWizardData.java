@@ -20,8 +20,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
-import android.telephony.SubscriptionManager;
-import android.telephony.TelephonyManager;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
 import android.util.Log;
 
 import android.util.Log;
@@ -32,15 +34,36 @@ import org.namelessrom.setupwizard.device.DeviceSpecificPages;
 import com.cyanogenmod.setupwizard.util.SetupWizardUtils;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 
 public class CMSetupWizardData extends AbstractSetupData {
     private static final String TAG = CMSetupWizardData.class.getSimpleName();
 
+    private static final long BROADCAST_COALESCE_DELAY_MS = 250;
+
+    // Zone id extra of ACTION_NETWORK_SET_TIMEZONE
+    private static final String EXTRA_TIME_ZONE = "time-zone";
+
+    private static final int DIRTY_SIM_MISSING = 1 << 0;
+    private static final int DIRTY_DATA_SIM = 1 << 1;
+    private static final int DIRTY_MOBILE_DATA = 1 << 2;
+    private static final int DIRTY_ACCOUNT = 1 << 3;
+    private static final int DIRTY_DATE_TIME = 1 << 4;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
     private boolean mTimeSet = false;
     private boolean mTimeZoneSet = false;
 
+    private int mPendingDirty = 0;
+    // Broadcasts behind the pending update, for the page flow trace
+    private final LinkedHashSet<String> mPendingActions = new LinkedHashSet<>();
+    private boolean mUpdateScheduled = false;
+
     public CMSetupWizardData(Context context) {
         super(context);
+        // Resume where we were if the process got killed mid setup
+        restoreProgress(SetupWizardUtils.getProgressJournal(context));
     }
 
     @Override
@@ -95,32 +118,110 @@ public class CMSetupWizardData extends AbstractSetupData {
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        if (intent.getAction().equals(TelephonyIntents.ACTION_SIM_STATE_CHANGED)) {
-            showHideDataSimPage();
-            showHideSimMissingPage();
-            showHideMobileDataPage();
-        } else if (intent.getAction()
-                .equals(ConnectivityManager.CONNECTIVITY_ACTION) ||
-                intent.getAction()
-                        .equals(ConnectivityManager.CONNECTIVITY_ACTION_IMMEDIATE)) {
-            showHideAccountPages();
-        } else  if (intent.getAction()
-                .equals(TelephonyIntents.ACTION_ANY_DATA_CONNECTION_STATE_CHANGED)) {
-            showHideMobileDataPage();
-            showHideAccountPages();
-        } else if (intent.getAction().equals(Intent.ACTION_TIMEZONE_CHANGED) ||
-                intent.getAction().equals(TelephonyIntents.ACTION_NETWORK_SET_TIMEZONE)) {
+        final String action = intent.getAction();
+        int dirty = 0;
+        if (action.equals(TelephonyIntents.ACTION_SIM_STATE_CHANGED)) {
+            ((SetupWizardApp) mContext.getApplicationContext()).invalidateTelephonySnapshot();
+            dirty = DIRTY_DATA_SIM | DIRTY_SIM_MISSING | DIRTY_MOBILE_DATA;
+        } else if (action.equals(ConnectivityManager.CONNECTIVITY_ACTION) ||
+                action.equals(ConnectivityManager.CONNECTIVITY_ACTION_IMMEDIATE)) {
+            dirty = DIRTY_ACCOUNT;
+        } else if (action.equals(TelephonyIntents.ACTION_ANY_DATA_CONNECTION_STATE_CHANGED)) {
+            dirty = DIRTY_MOBILE_DATA | DIRTY_ACCOUNT;
+        } else if (action.equals(Intent.ACTION_TIMEZONE_CHANGED) ||
+                action.equals(TelephonyIntents.ACTION_NETWORK_SET_TIMEZONE)) {
+            final String tzId = intent.getStringExtra(EXTRA_TIME_ZONE);
+            final DateTimePage dateTimePage = (DateTimePage) getPage(DateTimePage.TAG);
+            if (tzId != null && dateTimePage != null) {
+                dateTimePage.setNetworkTimeZone(tzId);
+            }
             mTimeZoneSet = true;
-            showHideDateTimePage();
-        } else if (intent.getAction().equals(Intent.ACTION_TIME_CHANGED) ||
-                intent.getAction().equals(TelephonyIntents.ACTION_NETWORK_SET_TIME)) {
+            dirty = DIRTY_DATE_TIME;
+        } else if (action.equals(Intent.ACTION_TIME_CHANGED) ||
+                action.equals(TelephonyIntents.ACTION_NETWORK_SET_TIME)) {
             mTimeSet = true;
+            dirty = DIRTY_DATE_TIME;
+        }
+        if (dirty != 0) {
+            mPendingActions.add(action);
+            markDirty(dirty);
+        }
+    }
+
+    /**
+     * Merges the pages affected by a broadcast into the pending dirty set. Broadcasts arriving
+     * within {@link #BROADCAST_COALESCE_DELAY_MS} are handled by a single visibility update.
+     */
+    private void markDirty(int dirty) {
+        mPendingDirty |= dirty;
+        if (!mUpdateScheduled) {
+            mUpdateScheduled = true;
+            mHandler.postDelayed(mCoalescedUpdateRunnable, BROADCAST_COALESCE_DELAY_MS);
+        }
+    }
+
+    private final Runnable mCoalescedUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final int dirty = mPendingDirty;
+            final String cause = TextUtils.join("+", mPendingActions);
+            mPendingDirty = 0;
+            mPendingActions.clear();
+            mUpdateScheduled = false;
+            // Telephony and connectivity queries go through binder, keep them off the UI thread
+            AsyncTask.SERIAL_EXECUTOR.execute(new VisibilityQuery(dirty, cause));
+        }
+    };
+
+    private class VisibilityQuery implements Runnable {
+        private final int mDirty;
+        private final String mCause;
+
+        private VisibilityQuery(int dirty, String cause) {
+            mDirty = dirty;
+            mCause = cause;
+        }
+
+        @Override
+        public void run() {
+            final boolean simInserted = (mDirty & (DIRTY_SIM_MISSING | DIRTY_MOBILE_DATA)) != 0
+                    && isSimInserted();
+            final boolean allSimsInserted = (mDirty & DIRTY_DATA_SIM) != 0 && allSimsInserted();
+            final boolean connected = (mDirty & DIRTY_ACCOUNT) != 0
+                    && SetupWizardUtils.isNetworkConnected(mContext);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    getPageFlowTrace().setCause(mCause);
+                    applyVisibility(mDirty, simInserted, allSimsInserted, connected);
+                    getPageFlowTrace().setCause(null);
+                }
+            });
+        }
+    }
+
+    private void applyVisibility(int dirty, boolean simInserted, boolean allSimsInserted,
+            boolean connected) {
+        if ((dirty & DIRTY_DATA_SIM) != 0) {
+            showHideDataSimPage(allSimsInserted);
+        }
+        if ((dirty & DIRTY_MOBILE_DATA) != 0) {
+            showHideMobileDataPage(simInserted);
+        }
+        if ((dirty & DIRTY_ACCOUNT) != 0) {
+            showHideAccountPages(connected);
+        }
+        if ((dirty & DIRTY_DATE_TIME) != 0) {
             showHideDateTimePage();
         }
+        onPageTreeChanged();
+        // May advance past the sim missing page, so run once the tree is up to date
+        if ((dirty & DIRTY_SIM_MISSING) != 0) {
+            showHideSimMissingPage(simInserted);
+        }
     }
 
-    private void showHideAccountPages() {
-        boolean isConnected = SetupWizardUtils.isNetworkConnected(mContext);
+    private void showHideAccountPages(boolean isConnected) {
         GmsAccountPage gmsAccountPage =
                 (GmsAccountPage) getPage(GmsAccountPage.TAG);
         if (gmsAccountPage != null) {
@@ -128,10 +229,10 @@ public class CMSetupWizardData extends AbstractSetupData {
         }
     }
 
-    private void showHideSimMissingPage() {
+    private void showHideSimMissingPage(boolean simInserted) {
         SimCardMissingPage simCardMissingPage =
                 (SimCardMissingPage) getPage(SimCardMissingPage.TAG);
-        if (simCardMissingPage != null && isSimInserted()) {
+        if (simCardMissingPage != null && simInserted) {
             simCardMissingPage.setHidden(true);
             if (isCurrentPage(simCardMissingPage)) {
                 onNextPage();
@@ -139,19 +240,19 @@ public class CMSetupWizardData extends AbstractSetupData {
         }
     }
 
-    private void showHideDataSimPage() {
+    private void showHideDataSimPage(boolean allSimsInserted) {
         ChooseDataSimPage chooseDataSimPage =
                 (ChooseDataSimPage) getPage(ChooseDataSimPage.TAG);
         if (chooseDataSimPage != null) {
-            chooseDataSimPage.setHidden(!allSimsInserted());
+            chooseDataSimPage.setHidden(!allSimsInserted);
         }
     }
 
-    private void showHideMobileDataPage() {
+    private void showHideMobileDataPage(boolean simInserted) {
         MobileDataPage mobileDataPage =
                 (MobileDataPage) getPage(MobileDataPage.TAG);
         if (mobileDataPage != null) {
-            mobileDataPage.setHidden(!isSimInserted());
+            mobileDataPage.setHidden(!simInserted);
         }
     }
 
@@ -177,37 +278,12 @@ public class CMSetupWizardData extends AbstractSetupData {
         return filter;
     }
 
-    // We only care that one sim is inserted
     private boolean isSimInserted() {
-        TelephonyManager tm = TelephonyManager.from(mContext);
-        int simSlotCount = tm.getSimCount();
-        for (int i = 0; i < simSlotCount; i++) {
-            int state;
-            try {
-                state = tm.getSimState(i);
-            } catch (IllegalStateException ise) {
-                Log.e(TAG, "Unable to get sim state from TelephonyManager");
-                continue;
-            }
-            if (state != TelephonyManager.SIM_STATE_ABSENT
-                    && state != TelephonyManager.SIM_STATE_UNKNOWN) {
-                 return true;
-            }
-        }
-        return false;
+        return SetupWizardUtils.getTelephonySnapshot(mContext).isSimInserted();
     }
 
-    // We only care that each slot has a sim
     private boolean allSimsInserted() {
-        TelephonyManager tm = TelephonyManager.from(mContext);
-        int simSlotCount = tm.getSimCount();
-        for (int i = 0; i < simSlotCount; i++) {
-            int state = tm.getSimState(i);
-            if (state == TelephonyManager.SIM_STATE_ABSENT) {
-                return false;
-            }
-        }
-        return simSlotCount == SubscriptionManager.from(mContext).getActiveSubscriptionInfoCount();
+        return SetupWizardUtils.getTelephonySnapshot(mContext).allSimsInserted();
     }
 
 }
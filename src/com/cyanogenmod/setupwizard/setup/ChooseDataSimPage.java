@@ -21,14 +21,17 @@ import android.app.FragmentManager;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
-import android.telephony.PhoneStateListener;
+import android.os.SystemClock;
 import android.telephony.ServiceState;
 import android.telephony.SignalStrength;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -39,6 +42,7 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import com.cyanogenmod.setupwizard.ui.SetupPageFragment;
+import com.cyanogenmod.setupwizard.util.RadioStateTracker;
 import com.cyanogenmod.setupwizard.util.SetupWizardUtils;
 
 import org.namelessrom.setupwizard.R;
@@ -80,6 +84,9 @@ public class ChooseDataSimPage extends SetupPage {
 
     public static class ChooseDataSimFragment extends SetupPageFragment {
 
+        // Weak coverage makes modems report many times per second, bars need not follow
+        private static final long MIN_ROW_UPDATE_INTERVAL_MS = 500;
+
         private ViewGroup mPageView;
         private ProgressBar mProgressBar;
         private SparseArray<TextView> mNameViews;
@@ -90,28 +97,63 @@ public class ChooseDataSimPage extends SetupPage {
         private SparseArray<SubscriptionInfo> mSubInfoRecords;
         private SparseArray<SignalStrength> mSignalStrengths;
         private SparseArray<ServiceState> mServiceStates;
-        private SparseArray<PhoneStateListener> mPhoneStateListeners;
+        // Operator name per slot, only fetched again once the service state changed
+        private SparseArray<String> mOperatorNames;
+
+        // What each row currently shows, so views are only touched when that changes
+        private SparseIntArray mShownSignalResIds;
+        private SparseArray<String> mShownCarrierNames;
+        private SparseLongArray mLastRowUpdates;
+        private SparseArray<Runnable> mPendingRowUpdates;
+
+        private int mCallbacksReceived = 0;
+        private int mRowUpdates = 0;
+        private int mViewsInvalidated = 0;
+
+        private final Handler mHandler = new Handler();
 
         private boolean mIsAttached = false;
 
         private Context mContext;
         private SubscriptionManager mSubscriptionManager;
 
-        private final Handler mHandler = new Handler();
-
-        private final Runnable mRadioReadyRunnable = new Runnable() {
+        private final RadioStateTracker.Listener mRadioListener =
+                new RadioStateTracker.Listener() {
             @Override
-            public void run() {
+            public void onRadioReady() {
                 hideWaitForRadio();
             }
         };
 
+        private final RadioStateTracker.PhoneStateCallback mPhoneStateCallback =
+                new RadioStateTracker.PhoneStateCallback() {
+            @Override
+            public void onPhoneStateChanged(int subId, int changed, ServiceState serviceState,
+                    SignalStrength signalStrength) {
+                mCallbacksReceived++;
+                for (int i = 0; i < mSubInfoRecords.size(); i++) {
+                    final SubscriptionInfo subInfoRecord = mSubInfoRecords.valueAt(i);
+                    if (subInfoRecord.getSubscriptionId() == subId) {
+                        if ((changed & RadioStateTracker.CHANGED_SERVICE_STATE) != 0) {
+                            mOperatorNames.remove(subInfoRecord.getSimSlotIndex());
+                        }
+                        mServiceStates.put(subInfoRecord.getSimSlotIndex(), serviceState);
+                        mSignalStrengths.put(subInfoRecord.getSimSlotIndex(), signalStrength);
+                        requestRowUpdate(subInfoRecord);
+                        break;
+                    }
+                }
+            }
+        };
+
         private View.OnClickListener mSetDataSimClickListener = new View.OnClickListener() {
             @Override
             public void onClick(View view) {
                 SubscriptionInfo subInfoRecord = (SubscriptionInfo)view.getTag();
                 if (subInfoRecord != null) {
                     mSubscriptionManager.setDefaultDataSubId(subInfoRecord.getSubscriptionId());
+                    // The snapshot holds the previous default data subscription
+                    ((SetupWizardApp) mContext).invalidateTelephonySnapshot();
                     setDataSubChecked(subInfoRecord);
                 }
             }
@@ -121,10 +163,9 @@ public class ChooseDataSimPage extends SetupPage {
         protected void initializePage() {
             mPageView = (ViewGroup)mRootView.findViewById(R.id.page_view);
             mProgressBar = (ProgressBar) mRootView.findViewById(R.id.progress);
-            List<SubscriptionInfo> subInfoRecords = mSubscriptionManager
-                    .getActiveSubscriptionInfoList();
-            int simCount =
-                    subInfoRecords != null ? subInfoRecords.size() : 0;
+            List<SubscriptionInfo> subInfoRecords =
+                    SetupWizardUtils.getTelephonySnapshot(mContext).getActiveSubscriptions();
+            int simCount = subInfoRecords.size();
             mSubInfoRecords = new SparseArray<SubscriptionInfo>(simCount);
             for (SubscriptionInfo subInfoRecord : subInfoRecords) {
                 mSubInfoRecords.put(subInfoRecord.getSimSlotIndex(), subInfoRecord);
@@ -133,8 +174,12 @@ public class ChooseDataSimPage extends SetupPage {
             mSignalViews = new SparseArray<ImageView>(simCount);
             mCheckBoxes = new SparseArray<CheckBox>(simCount);
             mServiceStates = new SparseArray<ServiceState>(simCount);
+            mOperatorNames = new SparseArray<String>(simCount);
             mSignalStrengths = new SparseArray<SignalStrength>(simCount);
-            mPhoneStateListeners = new SparseArray<PhoneStateListener>(simCount);
+            mShownSignalResIds = new SparseIntArray(simCount);
+            mShownCarrierNames = new SparseArray<String>(simCount);
+            mLastRowUpdates = new SparseLongArray(simCount);
+            mPendingRowUpdates = new SparseArray<Runnable>(simCount);
             LayoutInflater inflater = LayoutInflater.from(getActivity());
             for (int i = 0; i < simCount; i++) {
                 View simRow = inflater.inflate(R.layout.data_sim_row, null);
@@ -146,7 +191,6 @@ public class ChooseDataSimPage extends SetupPage {
                 mNameViews.put(slot, (TextView) simRow.findViewById(R.id.sim_title));
                 mSignalViews.put(slot, (ImageView) simRow.findViewById(R.id.signal));
                 mCheckBoxes.put(slot, (CheckBox) simRow.findViewById(R.id.enable_check));
-                mPhoneStateListeners.put(slot, createPhoneStateListener(subInfoRecord));
                 mPageView.addView(inflater.inflate(R.layout.divider, null));
             }
             updateSignalStrengths();
@@ -171,18 +215,22 @@ public class ChooseDataSimPage extends SetupPage {
             mIsAttached = true;
             mContext = getActivity().getApplicationContext();
             mPhone = (TelephonyManager)getActivity().getSystemService(Context.TELEPHONY_SERVICE);
-            for (int i = 0; i < mPhoneStateListeners.size(); i++) {
-                mPhone.listen(mPhoneStateListeners.valueAt(i),
-                        PhoneStateListener.LISTEN_SERVICE_STATE
-                                | PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+            // Service state changes were not delivered while paused
+            mOperatorNames.clear();
+            final RadioStateTracker radio = SetupWizardUtils.getRadioStateTracker(mContext);
+            for (int i = 0; i < mSubInfoRecords.size(); i++) {
+                radio.subscribe(mSubInfoRecords.valueAt(i).getSubscriptionId(),
+                        mPhoneStateCallback);
             }
             updateSignalStrengths();
             updateCurrentDataSub();
-            if (SetupWizardUtils.isRadioReady(mContext, null)) {
+            if (radio.isRadioReady()) {
                 hideWaitForRadio();
-            } else if (mTitleView != null) {
-                mTitleView.setText(R.string.loading);
-                mHandler.postDelayed(mRadioReadyRunnable, SetupWizardApp.RADIO_READY_TIMEOUT);
+            } else {
+                if (mTitleView != null) {
+                    mTitleView.setText(R.string.loading);
+                }
+                radio.addListener(mRadioListener);
             }
         }
 
@@ -190,34 +238,22 @@ public class ChooseDataSimPage extends SetupPage {
         public void onPause() {
             super.onPause();
             mIsAttached = false;
-            for (int i = 0; i < mPhoneStateListeners.size(); i++) {
-                mPhone.listen(mPhoneStateListeners.valueAt(i), PhoneStateListener.LISTEN_NONE);
+            final RadioStateTracker radio = SetupWizardUtils.getRadioStateTracker(mContext);
+            radio.removeListener(mRadioListener);
+            radio.unsubscribe(mPhoneStateCallback);
+            for (int i = 0; i < mPendingRowUpdates.size(); i++) {
+                mHandler.removeCallbacks(mPendingRowUpdates.valueAt(i));
+            }
+            mPendingRowUpdates.clear();
+            if (SetupWizardApp.DEBUG) {
+                Log.d(TAG, String.format("sim rows: callbacks=%d rowUpdates=%d "
+                        + "viewsInvalidated=%d", mCallbacksReceived, mRowUpdates,
+                        mViewsInvalidated));
             }
-        }
-
-        private PhoneStateListener createPhoneStateListener(final SubscriptionInfo subInfoRecord) {
-            return new PhoneStateListener(subInfoRecord.getSubscriptionId()) {
-
-                @Override
-                public void onSignalStrengthsChanged(SignalStrength signalStrength) {
-                    mSignalStrengths.put(subInfoRecord.getSimSlotIndex(), signalStrength);
-                    updateSignalStrength(subInfoRecord);
-                }
-
-                @Override
-                public void onServiceStateChanged(ServiceState state) {
-                    if (SetupWizardUtils.isRadioReady(mContext, state)) {
-                        hideWaitForRadio();
-                    }
-                    mServiceStates.put(subInfoRecord.getSimSlotIndex(), state);
-                    updateSignalStrength(subInfoRecord);
-                }
-            };
         }
 
         private void hideWaitForRadio() {
             if (getUserVisibleHint() && mProgressBar.isShown()) {
-                mHandler.removeCallbacks(mRadioReadyRunnable);
                 if (mTitleView != null) {
                     mTitleView.setText(mPage.getTitleResId());
                 }
@@ -228,6 +264,33 @@ public class ChooseDataSimPage extends SetupPage {
             }
         }
 
+        /**
+         * Updates the row of the given subscription, at most once per
+         * {@link #MIN_ROW_UPDATE_INTERVAL_MS}. Requests in between are folded into one
+         * update showing the latest state.
+         */
+        private void requestRowUpdate(final SubscriptionInfo subInfoRecord) {
+            final int slot = subInfoRecord.getSimSlotIndex();
+            if (mPendingRowUpdates.get(slot) != null) {
+                return;
+            }
+            final long wait = mLastRowUpdates.get(slot) + MIN_ROW_UPDATE_INTERVAL_MS
+                    - SystemClock.uptimeMillis();
+            if (wait <= 0) {
+                updateSignalStrength(subInfoRecord);
+                return;
+            }
+            final Runnable update = new Runnable() {
+                @Override
+                public void run() {
+                    mPendingRowUpdates.remove(slot);
+                    updateSignalStrength(subInfoRecord);
+                }
+            };
+            mPendingRowUpdates.put(slot, update);
+            mHandler.postDelayed(update, wait);
+        }
+
         private void updateSignalStrengths() {
             if (mIsAttached) {
                 for (int i = 0; i < mSubInfoRecords.size(); i++) {
@@ -250,9 +313,11 @@ public class ChooseDataSimPage extends SetupPage {
 
         private void updateCurrentDataSub() {
             if (mIsAttached) {
+                final int defaultDataPhoneId =
+                        SetupWizardUtils.getTelephonySnapshot(mContext).getDefaultDataPhoneId();
                 for (int i = 0; i < mSubInfoRecords.size(); i++) {
                     SubscriptionInfo subInfoRecord = mSubInfoRecords.valueAt(i);
-                    mCheckBoxes.get(i).setChecked(mSubscriptionManager.getDefaultDataPhoneId()
+                    mCheckBoxes.get(i).setChecked(defaultDataPhoneId
                             == subInfoRecord.getSimSlotIndex());
                 }
             }
@@ -260,7 +325,12 @@ public class ChooseDataSimPage extends SetupPage {
 
         private void updateCarrierText(SubscriptionInfo subInfoRecord) {
             if (mIsAttached) {
-                String name = mPhone.getNetworkOperatorName(subInfoRecord.getSubscriptionId());
+                final int slot = subInfoRecord.getSimSlotIndex();
+                String name = mOperatorNames.get(slot);
+                if (name == null) {
+                    name = mPhone.getNetworkOperatorName(subInfoRecord.getSubscriptionId());
+                    mOperatorNames.put(slot, name != null ? name : "");
+                }
                 ServiceState serviceState = mServiceStates.get(subInfoRecord.getSimSlotIndex());
                 if (TextUtils.isEmpty(name)) {
                     if (serviceState != null && serviceState.isEmergencyOnly()) {
@@ -269,19 +339,25 @@ public class ChooseDataSimPage extends SetupPage {
                         name = getString(R.string.setup_mobile_data_no_service);
                     }
                 }
+                if (name.equals(mShownCarrierNames.get(slot))) {
+                    return;
+                }
+                mShownCarrierNames.put(slot, name);
                 String formattedName =
                         getString(R.string.data_sim_name,
                                   subInfoRecord.getSimSlotIndex() + 1, name);
                 mNameViews.get(subInfoRecord.getSimSlotIndex()).setText(formattedName);
+                mViewsInvalidated++;
             }
         }
 
         private void updateSignalStrength(SubscriptionInfo subInfoRecord) {
             if (mIsAttached) {
-                ImageView signalView = mSignalViews.get(subInfoRecord.getSimSlotIndex());
+                mRowUpdates++;
+                mLastRowUpdates.put(subInfoRecord.getSimSlotIndex(), SystemClock.uptimeMillis());
                 SignalStrength signalStrength = mSignalStrengths.get(subInfoRecord.getSimSlotIndex());
                 if (!hasService(subInfoRecord)) {
-                    signalView.setImageResource(R.drawable.ic_signal_no_signal);
+                    setSignalResource(subInfoRecord, R.drawable.ic_signal_no_signal);
                 } else {
                     if (signalStrength != null) {
                         int resId;
@@ -302,13 +378,22 @@ public class ChooseDataSimPage extends SetupPage {
                                 resId = R.drawable.ic_signal_0;
                                 break;
                         }
-                        signalView.setImageResource(resId);
+                        setSignalResource(subInfoRecord, resId);
                     }
                 }
                 updateCarrierText(subInfoRecord);
             }
         }
 
+        private void setSignalResource(SubscriptionInfo subInfoRecord, int resId) {
+            final int slot = subInfoRecord.getSimSlotIndex();
+            if (mShownSignalResIds.get(slot) != resId) {
+                mShownSignalResIds.put(slot, resId);
+                mSignalViews.get(slot).setImageResource(resId);
+                mViewsInvalidated++;
+            }
+        }
+
         private boolean hasService(SubscriptionInfo subInfoRecord) {
             boolean retVal;
             ServiceState serviceState = mServiceStates.get(subInfoRecord.getSimSlotIndex());
@@ -37,6 +37,8 @@ import android.widget.CheckBox;
 import android.widget.TextView;
 
 import com.cyanogenmod.setupwizard.ui.SetupPageFragment;
+import com.cyanogenmod.setupwizard.util.FinishPipeline;
+import com.cyanogenmod.setupwizard.util.SettingsBatch;
 import com.cyanogenmod.setupwizard.util.SetupWizardUtils;
 import com.cyanogenmod.setupwizard.util.WhisperPushUtils;
 import com.google.android.gms.common.ConnectionResult;
@@ -83,24 +85,27 @@ public class CyanogenSettingsPage extends SetupPage {
     }
 
     private static void writeDisableNavkeysOption(Context context, boolean enabled) {
-        Settings.Secure.putInt(context.getContentResolver(),
+        final SettingsBatch settings = SetupWizardUtils.getSettingsBatch(context);
+        settings.putInt(SettingsBatch.NAMESPACE_SECURE,
                 Settings.Secure.DEV_FORCE_SHOW_NAVBAR, enabled ? 1 : 0);
-        Settings.System.putInt(context.getContentResolver(),
+        settings.putInt(SettingsBatch.NAMESPACE_SYSTEM,
                 Settings.System.HARDWARE_KEYS_DISABLE, enabled ? 1 : 0);
     }
 
     @Override
     public void onFinishSetup() {
-        getCallbacks().addFinishRunnable(new Runnable() {
+        // Committed together with the other settings by the finish pipeline
+        if (getData().containsKey(KEY_ENABLE_NAV_KEYS)) {
+            writeDisableNavkeysOption(mContext, getData().getBoolean(KEY_ENABLE_NAV_KEYS));
+        }
+        handleEnableMetrics();
+        getCallbacks().addFinishTask(new FinishPipeline.Task("whisperpush",
+                FinishPipeline.AFFINITY_BACKGROUND, new Runnable() {
             @Override
             public void run() {
-                if (getData().containsKey(KEY_ENABLE_NAV_KEYS)) {
-                    writeDisableNavkeysOption(mContext, getData().getBoolean(KEY_ENABLE_NAV_KEYS));
-                }
+                handleWhisperPushRegistration();
             }
-        });
-        handleWhisperPushRegistration();
-        handleEnableMetrics();
+        }));
         handleDefaultThemeSetup();
     }
 
@@ -118,7 +123,8 @@ public class CyanogenSettingsPage extends SetupPage {
         Bundle privacyData = getData();
         if (privacyData != null
                 && privacyData.containsKey(CyanogenSettingsPage.KEY_SEND_METRICS)) {
-            Settings.Secure.putInt(mContext.getContentResolver(), Settings.Secure.STATS_COLLECTION,
+            SetupWizardUtils.getSettingsBatch(mContext).putInt(SettingsBatch.NAMESPACE_SECURE,
+                    Settings.Secure.STATS_COLLECTION,
                     privacyData.getBoolean(CyanogenSettingsPage.KEY_SEND_METRICS) ? 1 : 0);
         }
     }
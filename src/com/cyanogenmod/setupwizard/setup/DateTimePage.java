@@ -28,50 +28,77 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.res.XmlResourceParser;
 import android.os.Bundle;
-import android.os.Handler;
 import android.text.format.DateFormat;
-import android.util.Log;
+import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.AdapterView;
+import android.widget.BaseAdapter;
 import android.widget.DatePicker;
-import android.widget.SimpleAdapter;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.TimePicker;
 
 import com.cyanogenmod.setupwizard.ui.SetupPageFragment;
+import com.cyanogenmod.setupwizard.util.TimeZoneTable;
 
 import org.namelessrom.setupwizard.R;
-import org.xmlpull.v1.XmlPullParserException;
 
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.TimeZone;
 
 public class DateTimePage extends SetupPage {
 
     public static final String TAG = "DateTimePage";
 
-    private static final String KEY_ID = "id";  // value: String
-    private static final String KEY_DISPLAYNAME = "name";  // value: String
-    private static final String KEY_GMT = "gmt";  // value: String
-    private static final String KEY_OFFSET = "offset";  // value: int (Integer)
-    private static final String XMLTAG_TIMEZONE = "timezone";
-
-    private static final int HOURS_1 = 60 * 60000;
+    private static final String KEY_NETWORK_TIME_ZONE = "network_time_zone";
 
+    private volatile TimeZoneTable mTimeZoneTable;
+    private volatile TimeZoneTable.OffsetList mTimeZones;
 
     public DateTimePage(Context context, SetupDataCallbacks callbacks) {
         super(context, callbacks);
     }
 
+    @Override
+    protected boolean needsData() {
+        return true;
+    }
+
+    @Override
+    protected boolean isShownWhileLoading() {
+        // Date and time do not need the timezones, the list gets filled in once loaded
+        return true;
+    }
+
+    @Override
+    protected void onLoadData() {
+        final TimeZoneTable table = TimeZoneTable.get(mContext);
+        mTimeZones = table.sortByOffset(System.currentTimeMillis());
+        mTimeZoneTable = table;
+    }
+
+    @Override
+    public void doLoadAction(FragmentManager fragmentManager, int action) {
+        final TimeZoneTable table = mTimeZoneTable;
+        final TimeZoneTable.OffsetList timeZones = mTimeZones;
+        if (table != null && (!table.isCurrent()
+                || !timeZones.isCurrent(System.currentTimeMillis()))) {
+            // Loaded ahead of a locale change, e.g. on the welcome page, or so long ago
+            // that the offsets may have moved
+            reloadData();
+        }
+        super.doLoadAction(fragmentManager, action);
+    }
+
+    /**
+     * @return The timezones sorted by offset, or null if loading them failed
+     */
+    TimeZoneTable.OffsetList getTimeZones() {
+        return mTimeZones;
+    }
+
     @Override
     public Fragment getFragment(FragmentManager fragmentManager, int action) {
         Fragment fragment = fragmentManager.findFragmentByTag(getKey());
@@ -85,6 +112,13 @@ public class DateTimePage extends SetupPage {
         return fragment;
     }
 
+    /**
+     * Remembers the timezone reported by the network so the page can preselect it.
+     */
+    public void setNetworkTimeZone(String tzId) {
+        getData().putString(KEY_NETWORK_TIME_ZONE, tzId);
+    }
+
     @Override
     public String getKey() {
         return TAG;
@@ -103,13 +137,26 @@ public class DateTimePage extends SetupPage {
         private View mTimeView;
         private TextView mDateTextView;
         private TextView mTimeTextView;
+        private Spinner mTimeZoneSpinner;
 
-
-        private final Handler mHandler = new Handler();
+        private final Runnable mTimeZonesLoadedRunnable = new Runnable() {
+            @Override
+            public void run() {
+                final DateTimePage page = (DateTimePage) mPage;
+                final TimeZoneTable.OffsetList timeZones = page.getTimeZones();
+                if (timeZones != null) {
+                    bindTimeZones(page, timeZones);
+                }
+            }
+        };
 
         @Override
         public void onResume() {
             super.onResume();
+            if (mTimeZoneSpinner.getAdapter() == null) {
+                // Runs right away if the timezones are loaded already
+                mPage.awaitData(mTimeZonesLoadedRunnable);
+            }
             // Register for time ticks and other reasons for time change
             IntentFilter filter = new IntentFilter();
             filter.addAction(Intent.ACTION_TIME_TICK);
@@ -123,13 +170,13 @@ public class DateTimePage extends SetupPage {
         @Override
         public void onPause() {
             super.onPause();
+            mPage.cancelAwaitData(mTimeZonesLoadedRunnable);
             getActivity().unregisterReceiver(mIntentReceiver);
         }
 
         @Override
         protected void initializePage() {
-            final Spinner spinner = (Spinner) mRootView.findViewById(R.id.timezone_list);
-            final SimpleAdapter adapter = constructTimezoneAdapter(getActivity(), false);
+            mTimeZoneSpinner = (Spinner) mRootView.findViewById(R.id.timezone_list);
             mCurrentTimeZone = TimeZone.getDefault();
             mDateView = mRootView.findViewById(R.id.date_item);
             mDateView.setOnClickListener(new View.OnClickListener() {
@@ -147,34 +194,35 @@ public class DateTimePage extends SetupPage {
             });
             mDateTextView = (TextView)mRootView.findViewById(R.id.date_text);
             mTimeTextView = (TextView)mRootView.findViewById(R.id.time_text);
-            // Pre-select current/default timezone
-            mHandler.post(new Runnable() {
+        }
+
+        private void bindTimeZones(Page page, TimeZoneTable.OffsetList table) {
+            // Pre-select the carrier suggested timezone, or the current/default one
+            final String networkTimeZone = page != null
+                    ? page.getData().getString(KEY_NETWORK_TIME_ZONE) : null;
+            int tzIndex = networkTimeZone != null
+                    ? table.indexOf(TimeZone.getTimeZone(networkTimeZone))
+                    : table.indexOf(mCurrentTimeZone);
+            mTimeZoneSpinner.setAdapter(new TimeZoneAdapter(getActivity(), table));
+            if (tzIndex != -1) {
+                mTimeZoneSpinner.setSelection(tzIndex);
+            }
+            mTimeZoneSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
                 @Override
-                public void run() {
-                    int tzIndex = getTimeZoneIndex(adapter, mCurrentTimeZone);
-                    spinner.setAdapter(adapter);
-                    if (tzIndex != -1) {
-                        spinner.setSelection(tzIndex);
+                public void onItemSelected(AdapterView<?> adapterView, View view, int position, long id) {
+                    final String tzId = (String) adapterView.getItemAtPosition(position);
+                    if (mCurrentTimeZone != null && !mCurrentTimeZone.getID().equals(tzId)) {
+                        // Update the system timezone value
+                        final Activity activity = getActivity();
+                        final AlarmManager alarm = (AlarmManager) activity.getSystemService(Context.ALARM_SERVICE);
+                        alarm.setTimeZone(tzId);
+                        mCurrentTimeZone = TimeZone.getTimeZone(tzId);
                     }
-                    spinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
-                        @Override
-                        public void onItemSelected(AdapterView<?> adapterView, View view, int position, long id) {
-                            final Map<?, ?> map = (Map<?, ?>) adapterView.getItemAtPosition(position);
-                            final String tzId = (String) map.get(KEY_ID);
-                            if (mCurrentTimeZone != null && !mCurrentTimeZone.getID().equals(tzId)) {
-                                // Update the system timezone value
-                                final Activity activity = getActivity();
-                                final AlarmManager alarm = (AlarmManager) activity.getSystemService(Context.ALARM_SERVICE);
-                                alarm.setTimeZone(tzId);
-                                mCurrentTimeZone = TimeZone.getTimeZone(tzId);
-                            }
-
-                        }
-
-                        @Override
-                        public void onNothingSelected(AdapterView<?> adapterView) {
-                        }
-                    });
+
+                }
+
+                @Override
+                public void onNothingSelected(AdapterView<?> adapterView) {
                 }
             });
         }
@@ -233,108 +281,6 @@ public class DateTimePage extends SetupPage {
 
     }
 
-    private static SimpleAdapter constructTimezoneAdapter(Context context,
-            boolean sortedByName) {
-        final String[] from = new String[] {KEY_DISPLAYNAME, KEY_GMT};
-        final int[] to = new int[] {android.R.id.text1, android.R.id.text2};
-
-        final String sortKey = (sortedByName ? KEY_DISPLAYNAME : KEY_OFFSET);
-        final TimeZoneComparator comparator = new TimeZoneComparator(sortKey);
-        final List<HashMap<String, Object>> sortedList = getZones(context);
-        Collections.sort(sortedList, comparator);
-        final SimpleAdapter adapter = new SimpleAdapter(context,
-                sortedList,
-                R.layout.date_time_setup_custom_list_item_2,
-                from,
-                to);
-
-        return adapter;
-    }
-
-    private static List<HashMap<String, Object>> getZones(Context context) {
-        final List<HashMap<String, Object>> myData = new ArrayList<HashMap<String, Object>>();
-        final long date = Calendar.getInstance().getTimeInMillis();
-        try {
-            XmlResourceParser xrp = context.getResources().getXml(R.xml.timezones);
-            while (xrp.next() != XmlResourceParser.START_TAG)
-                continue;
-            xrp.next();
-            while (xrp.getEventType() != XmlResourceParser.END_TAG) {
-                while (xrp.getEventType() != XmlResourceParser.START_TAG) {
-                    if (xrp.getEventType() == XmlResourceParser.END_DOCUMENT) {
-                        return myData;
-                    }
-                    xrp.next();
-                }
-                if (xrp.getName().equals(XMLTAG_TIMEZONE)) {
-                    String id = xrp.getAttributeValue(0);
-                    String displayName = xrp.nextText();
-                    addItem(myData, id, displayName, date);
-                }
-                while (xrp.getEventType() != XmlResourceParser.END_TAG) {
-                    xrp.next();
-                }
-                xrp.next();
-            }
-            xrp.close();
-        } catch (XmlPullParserException xppe) {
-            Log.e(TAG, "Ill-formatted timezones.xml file");
-        } catch (java.io.IOException ioe) {
-            Log.e(TAG, "Unable to read timezones.xml file");
-        }
-
-        return myData;
-    }
-
-    private static void addItem(
-            List<HashMap<String, Object>> myData, String id, String displayName, long date) {
-        final HashMap<String, Object> map = new HashMap<String, Object>();
-        map.put(KEY_ID, id);
-        map.put(KEY_DISPLAYNAME, displayName);
-        final TimeZone tz = TimeZone.getTimeZone(id);
-        final int offset = tz.getOffset(date);
-        final int p = Math.abs(offset);
-        final StringBuilder name = new StringBuilder();
-        name.append("GMT");
-
-        if (offset < 0) {
-            name.append('-');
-        } else {
-            name.append('+');
-        }
-
-        name.append(p / (HOURS_1));
-        name.append(':');
-
-        int min = p / 60000;
-        min %= 60;
-
-        if (min < 10) {
-            name.append('0');
-        }
-        name.append(min);
-
-        map.put(KEY_GMT, name.toString());
-        map.put(KEY_OFFSET, offset);
-
-        myData.add(map);
-    }
-
-    private static int getTimeZoneIndex(SimpleAdapter adapter, TimeZone tz) {
-        final String defaultId = tz.getID();
-        final int listSize = adapter.getCount();
-        for (int i = 0; i < listSize; i++) {
-            // Using HashMap<String, Object> induces unnecessary warning.
-            final HashMap<?,?> map = (HashMap<?,?>)adapter.getItem(i);
-            final String id = (String)map.get(KEY_ID);
-            if (defaultId.equals(id)) {
-                // If current timezone is in this list, move focus to it
-                return i;
-            }
-        }
-        return -1;
-    }
-
     private static void setDate(Context context, int year, int month, int day) {
         Calendar c = Calendar.getInstance();
 
@@ -362,36 +308,38 @@ public class DateTimePage extends SetupPage {
         }
     }
 
-    private static class TimeZoneComparator implements Comparator<HashMap<?, ?>> {
-        private String mSortingKey;
+    private static class TimeZoneAdapter extends BaseAdapter {
+        private final LayoutInflater mInflater;
+        private final TimeZoneTable.OffsetList mTable;
 
-        public TimeZoneComparator(String sortingKey) {
-            mSortingKey = sortingKey;
+        public TimeZoneAdapter(Context context, TimeZoneTable.OffsetList table) {
+            mInflater = LayoutInflater.from(context);
+            mTable = table;
         }
 
-        public void setSortingKey(String sortingKey) {
-            mSortingKey = sortingKey;
+        @Override
+        public int getCount() {
+            return mTable.size();
         }
 
-        public int compare(HashMap<?, ?> map1, HashMap<?, ?> map2) {
-            Object value1 = map1.get(mSortingKey);
-            Object value2 = map2.get(mSortingKey);
-
-            /*
-             * This should never happen, but just in-case, put non-comparable
-             * items at the end.
-             */
-            if (!isComparable(value1)) {
-                return isComparable(value2) ? 1 : 0;
-            } else if (!isComparable(value2)) {
-                return -1;
-            }
+        @Override
+        public String getItem(int position) {
+            return mTable.getId(position);
+        }
 
-            return ((Comparable) value1).compareTo(value2);
+        @Override
+        public long getItemId(int position) {
+            return position;
         }
 
-        private boolean isComparable(Object value) {
-            return (value != null) && (value instanceof Comparable);
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            final View view = convertView != null ? convertView
+                    : mInflater.inflate(R.layout.date_time_setup_custom_list_item_2, parent, false);
+            ((TextView) view.findViewById(android.R.id.text1)).setText(mTable.getName(position));
+            ((TextView) view.findViewById(android.R.id.text2))
+                    .setText(mTable.getGmtLabel(position));
+            return view;
         }
     }
 
@@ -19,9 +19,11 @@ package com.cyanogenmod.setupwizard.setup;
 import android.app.Fragment;
 import android.app.FragmentManager;
 import android.content.Context;
+import android.graphics.Point;
 import android.os.Bundle;
 
 import com.cyanogenmod.setupwizard.ui.SetupPageFragment;
+import com.cyanogenmod.setupwizard.util.RevealWallpaper;
 
 import org.namelessrom.setupwizard.R;
 
@@ -31,8 +33,22 @@ public class FinishPage extends SetupPage {
 
     private FinishFragment mFinishFragment;
 
+    // Lives with the page, so it survives configuration changes of the activity
+    private final RevealWallpaper mRevealWallpaper;
+
     public FinishPage(Context context, SetupDataCallbacks callbacks) {
         super(context, callbacks);
+        mRevealWallpaper = new RevealWallpaper(context);
+    }
+
+    public RevealWallpaper getRevealWallpaper() {
+        return mRevealWallpaper;
+    }
+
+    @Override
+    public void release() {
+        // Unregisters the wallpaper receiver and drops the decoded bitmap
+        mRevealWallpaper.release();
     }
 
     @Override
@@ -74,6 +90,15 @@ public class FinishPage extends SetupPage {
         @Override
         protected void initializePage() {}
 
+        @Override
+        public void onResume() {
+            super.onResume();
+            // Decode the wallpaper for the reveal animation while the user reads this page
+            final Point size = new Point();
+            getActivity().getWindowManager().getDefaultDisplay().getRealSize(size);
+            ((FinishPage) mPage).getRevealWallpaper().prefetch(size);
+        }
+
         @Override
         protected int getLayoutResource() {
             return R.layout.setup_finished_page;
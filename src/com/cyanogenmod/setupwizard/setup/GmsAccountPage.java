@@ -108,6 +108,12 @@ public class GmsAccountPage extends SetupPage {
         return R.string.skip;
     }
 
+    @Override
+    protected boolean isPreloadable() {
+        // Launches an external activity from its loading fragment
+        return false;
+    }
+
     @Override
     public void doLoadAction(FragmentManager fragmentManager, int action) {
         if (action == Page.ACTION_PREVIOUS) {
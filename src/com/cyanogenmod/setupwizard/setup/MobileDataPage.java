@@ -20,11 +20,8 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.content.Context;
 import android.os.Bundle;
-import android.os.Handler;
-import android.telephony.PhoneStateListener;
 import android.telephony.ServiceState;
 import android.telephony.SignalStrength;
-import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.view.View;
@@ -36,10 +33,10 @@ import android.widget.Switch;
 import android.widget.TextView;
 
 import com.cyanogenmod.setupwizard.ui.SetupPageFragment;
+import com.cyanogenmod.setupwizard.util.RadioStateTracker;
 import com.cyanogenmod.setupwizard.util.SetupWizardUtils;
 
 import org.namelessrom.setupwizard.R;
-import org.namelessrom.setupwizard.SetupWizardApp;
 
 public class MobileDataPage extends SetupPage {
 
@@ -89,34 +86,24 @@ public class MobileDataPage extends SetupPage {
 
         private Context mContext;
 
-        private final Handler mHandler = new Handler();
-
-        private final Runnable mRadioReadyRunnable = new Runnable() {
+        private final RadioStateTracker.Listener mRadioListener =
+                new RadioStateTracker.Listener() {
             @Override
-            public void run() {
+            public void onRadioReady() {
                 hideWaitForRadio();
             }
         };
 
-        private PhoneStateListener mPhoneStateListener =
-                new PhoneStateListener(SubscriptionManager.getDefaultDataSubId()) {
-
-                    @Override
-                    public void onSignalStrengthsChanged(SignalStrength signalStrength) {
-                        mSignalStrength = signalStrength;
-                        updateSignalStrength();
-                    }
-
-                    @Override
-                    public void onServiceStateChanged(ServiceState state) {
-                        if (SetupWizardUtils.isRadioReady(mContext, state)) {
-                            hideWaitForRadio();
-                        }
-                        mServiceState = state;
-                        updateSignalStrength();
-                    }
-
-                };
+        private final RadioStateTracker.PhoneStateCallback mPhoneStateCallback =
+                new RadioStateTracker.PhoneStateCallback() {
+            @Override
+            public void onPhoneStateChanged(int subId, int changed, ServiceState serviceState,
+                    SignalStrength signalStrength) {
+                mServiceState = serviceState;
+                mSignalStrength = signalStrength;
+                updateSignalStrength();
+            }
+        };
 
         private View.OnClickListener mEnableDataClickListener = new View.OnClickListener() {
             @Override
@@ -151,16 +138,18 @@ public class MobileDataPage extends SetupPage {
             mIsAttached = true;
             mContext = getActivity().getApplicationContext();
             mPhone = (TelephonyManager)getActivity().getSystemService(Context.TELEPHONY_SERVICE);
-            mPhone.listen(mPhoneStateListener,
-                    PhoneStateListener.LISTEN_SERVICE_STATE
-                            | PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
             updateDataConnectionStatus();
-            updateSignalStrength();
-            if (SetupWizardUtils.isRadioReady(mContext, null)) {
+            final RadioStateTracker radio = SetupWizardUtils.getRadioStateTracker(mContext);
+            // Renders the signal right away if the tracker knows it already
+            radio.subscribe(SetupWizardUtils.getTelephonySnapshot(mContext).getDefaultDataSubId(),
+                    mPhoneStateCallback);
+            if (radio.isRadioReady()) {
                 hideWaitForRadio();
-            } else if (mTitleView != null) {
-                mTitleView.setText(R.string.loading);
-                mHandler.postDelayed(mRadioReadyRunnable, SetupWizardApp.RADIO_READY_TIMEOUT);
+            } else {
+                if (mTitleView != null) {
+                    mTitleView.setText(R.string.loading);
+                }
+                radio.addListener(mRadioListener);
             }
         }
 
@@ -168,12 +157,13 @@ public class MobileDataPage extends SetupPage {
         public void onPause() {
             super.onPause();
             mIsAttached = false;
-            mPhone.listen(mPhoneStateListener, PhoneStateListener.LISTEN_NONE);
+            final RadioStateTracker radio = SetupWizardUtils.getRadioStateTracker(mContext);
+            radio.removeListener(mRadioListener);
+            radio.unsubscribe(mPhoneStateCallback);
         }
 
         private void hideWaitForRadio() {
             if (getUserVisibleHint() && mProgressBar.isShown()) {
-                mHandler.removeCallbacks(mRadioReadyRunnable);
                 if (mTitleView != null) {
                     mTitleView.setText(mPage.getTitleResId());
                 }
@@ -186,8 +176,8 @@ public class MobileDataPage extends SetupPage {
 
         private void updateCarrierText() {
             if (mIsAttached) {
-                String name =
-                        mPhone.getNetworkOperatorName(SubscriptionManager.getDefaultDataSubId());
+                String name = mPhone.getNetworkOperatorName(
+                        SetupWizardUtils.getTelephonySnapshot(mContext).getDefaultDataSubId());
                 if (TextUtils.isEmpty(name)) {
                     if (mServiceState != null && mServiceState.isEmergencyOnly()) {
                         name = getString(R.string.setup_mobile_data_emergency_only);
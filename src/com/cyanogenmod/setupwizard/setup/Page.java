@@ -20,6 +20,10 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.content.Intent;
 import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
+
+import java.util.concurrent.Executor;
 
 public interface Page {
 
@@ -43,7 +47,15 @@ public interface Page {
     public boolean doPreviousAction();
     public boolean doNextAction();
     public void doLoadAction(FragmentManager fragmentManager, int action);
+    public boolean preload(FragmentManager fragmentManager, LayoutInflater inflater,
+            ViewGroup container);
+    public void releasePreload();
+    public boolean isDataReady();
+    public void loadData(Executor executor);
+    public void awaitData(Runnable callback);
+    public void cancelAwaitData(Runnable callback);
     public void onFinishSetup();
+    public void release();
     public boolean onActivityResult(int requestCode, int resultCode, Intent data);
     public SetupDataCallbacks getCallbacks();
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.setup;
+
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Fixed size ring buffer of page flow events: pages entered, left and skipped, pages hidden or
+ * shown along with the broadcast that caused it, and next/previous navigation.
+ * <p/>
+ * Recording only stores a few fields and never allocates. The buffer is exported as tab
+ * separated lines, one event per line, so traces from many devices can be concatenated and
+ * aggregated on a desktop.
+ */
+public class PageFlowTrace {
+
+    private static final String TAG = PageFlowTrace.class.getSimpleName();
+
+    private static final int CAPACITY = 256;
+    private static final int FORMAT_VERSION = 1;
+
+    public static final String CAUSE_INIT = "init";
+    public static final String CAUSE_RESTORE = "restore";
+
+    private static final int EVENT_ENTER = 0;
+    private static final int EVENT_EXIT = 1;
+    private static final int EVENT_SKIP = 2;
+    private static final int EVENT_HIDE = 3;
+    private static final int EVENT_SHOW = 4;
+    private static final int EVENT_NEXT = 5;
+    private static final int EVENT_PREVIOUS = 6;
+
+    private static final String[] EVENT_NAMES = {
+            "enter", "exit", "skip", "hide", "show", "next", "previous"
+    };
+
+    private final long[] mTimes = new long[CAPACITY];
+    private final int[] mEvents = new int[CAPACITY];
+    private final String[] mPages = new String[CAPACITY];
+    private final String[] mDetails = new String[CAPACITY];
+    private int mNext = 0;
+    private int mCount = 0;
+    private int mDropped = 0;
+
+    private String mCause = CAUSE_INIT;
+
+    private void record(int event, String page, String detail) {
+        mTimes[mNext] = SystemClock.elapsedRealtime();
+        mEvents[mNext] = event;
+        mPages[mNext] = page;
+        mDetails[mNext] = detail;
+        mNext = (mNext + 1) % CAPACITY;
+        if (mCount < CAPACITY) {
+            mCount++;
+        } else {
+            mDropped++;
+        }
+    }
+
+    /**
+     * Sets what hide/show events recorded from now on are attributed to, e.g. the broadcast
+     * actions being handled.
+     */
+    public void setCause(String cause) {
+        mCause = cause;
+    }
+
+    public void pageEntered(Page page) {
+        record(EVENT_ENTER, page.getKey(), null);
+    }
+
+    public void pageExited(Page page) {
+        record(EVENT_EXIT, page.getKey(), null);
+    }
+
+    public void pageSkipped(Page page) {
+        record(EVENT_SKIP, page.getKey(), null);
+    }
+
+    public void pageHiddenChanged(Page page) {
+        record(page.isHidden() ? EVENT_HIDE : EVENT_SHOW, page.getKey(), mCause);
+    }
+
+    public void navigated(Page from, boolean next) {
+        record(next ? EVENT_NEXT : EVENT_PREVIOUS, from.getKey(), null);
+    }
+
+    /**
+     * Writes the buffered events to the given file on a background thread.
+     * <p/>
+     * Lines are {@code elapsed_ms<TAB>event<TAB>page<TAB>detail}, preceded by comment lines
+     * starting with '#' that carry the format version, the build and the wall clock time
+     * matching elapsed time 0.
+     */
+    public void export(final File file) {
+        final int count = mCount;
+        final int first = (mNext - count + CAPACITY) % CAPACITY;
+        final long[] times = new long[count];
+        final int[] events = new int[count];
+        final String[] pages = new String[count];
+        final String[] details = new String[count];
+        for (int i = 0; i < count; i++) {
+            final int index = (first + i) % CAPACITY;
+            times[i] = mTimes[index];
+            events[i] = mEvents[index];
+            pages[i] = mPages[index];
+            details[i] = mDetails[index];
+        }
+        final int dropped = mDropped;
+        final long bootTime = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                BufferedWriter out = null;
+                try {
+                    out = new BufferedWriter(new FileWriter(file));
+                    out.write("# page flow v" + FORMAT_VERSION + "\n");
+                    out.write("# build\t" + Build.FINGERPRINT + "\n");
+                    out.write("# boot_time_ms\t" + bootTime + "\n");
+                    out.write("# dropped\t" + dropped + "\n");
+                    for (int i = 0; i < times.length; i++) {
+                        out.write(Long.toString(times[i]));
+                        out.write('\t');
+                        out.write(EVENT_NAMES[events[i]]);
+                        out.write('\t');
+                        out.write(pages[i]);
+                        out.write('\t');
+                        out.write(details[i] != null ? details[i] : "-");
+                        out.write('\n');
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to export page flow", e);
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            }
+        });
+    }
+}
@@ -16,29 +16,99 @@
 
 package com.cyanogenmod.setupwizard.setup;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 public class PageList extends LinkedHashMap<String, Page> {
 
+    // Positional index kept in insertion order next to the key map
+    private final ArrayList<Page> mPageIndex = new ArrayList<>();
+    private final ArrayList<String> mKeys = new ArrayList<>();
+    // Position of every key in mPageIndex, so replacing a page does not search for it
+    private final HashMap<String, Integer> mPositions = new HashMap<>();
+
     public PageList(Page... pages) {
+        mPageIndex.ensureCapacity(pages.length);
+        mKeys.ensureCapacity(pages.length);
         for (Page page : pages) {
             put(page.getKey(), page);
         }
     }
 
+    @Override
+    public Page put(String key, Page page) {
+        Page previous = super.put(key, page);
+        if (previous != null) {
+            // LinkedHashMap keeps the original insertion position on replace
+            mPageIndex.set(mPositions.get(key), page);
+        } else {
+            mPositions.put(key, mPageIndex.size());
+            mPageIndex.add(page);
+            mKeys.add(key);
+        }
+        return previous;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Page> pages) {
+        for (Map.Entry<? extends String, ? extends Page> entry : pages.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Page remove(Object key) {
+        Page removed = super.remove(key);
+        if (removed != null) {
+            final int position = mPositions.remove(key);
+            mPageIndex.remove(position);
+            mKeys.remove(position);
+            for (int i = position; i < mKeys.size(); i++) {
+                mPositions.put(mKeys.get(i), i);
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        mPageIndex.clear();
+        mKeys.clear();
+        mPositions.clear();
+    }
+
+    // The views are read only, removing through them would bypass the positional index
+
+    @Override
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(super.keySet());
+    }
+
+    @Override
+    public Collection<Page> values() {
+        return Collections.unmodifiableCollection(super.values());
+    }
+
+    @Override
+    public Set<Map.Entry<String, Page>> entrySet() {
+        return Collections.unmodifiableSet(super.entrySet());
+    }
+
     public Page getPage(String key) {
         return get(key);
     }
 
     public Page getPage(int index) {
-        int i=0;
-        for (Page page : values()) {
-            if (i == index) {
-                return page;
-            }
-            i++;
+        if (index < 0 || index >= mPageIndex.size()) {
+            return null;
         }
-        return null;
+        return mPageIndex.get(index);
     }
 
 }
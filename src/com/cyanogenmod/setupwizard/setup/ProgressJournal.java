@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.setup;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.namelessrom.setupwizard.SetupWizardApp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the setup progress: the current page, the hidden flag and the data
+ * bundle of every page. It survives the process being killed, so a cold start can resume on
+ * the page the user was on.
+ * <p/>
+ * Records are encoded on the main thread and written by a background thread, which batches
+ * everything appended within {@link #FLUSH_DELAY_MS} into a single write and fsync. Each record
+ * carries a checksum; replay stops at the first torn or corrupt record.
+ * <p/>
+ * There is one journal per process, see {@link SetupWizardApp#getProgressJournal()}: its
+ * thread is the only one touching the file, so a replay always follows the writes of every
+ * setup data instance before it.
+ */
+public class ProgressJournal {
+
+    private static final String TAG = ProgressJournal.class.getSimpleName();
+
+    private static final String JOURNAL_FILE = "setup_progress.journal";
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte RECORD_CURRENT_PAGE = 1;
+    private static final byte RECORD_HIDDEN = 2;
+    private static final byte RECORD_DATA = 3;
+
+    private static final long FLUSH_DELAY_MS = 100;
+    // Rewritten as a snapshot on the next cold start once it grows past this
+    private static final long COMPACT_THRESHOLD = 32 * 1024;
+
+    /**
+     * Progress recovered from the journal.
+     */
+    public static class State {
+        public String currentPage;
+        public final HashMap<String, Boolean> hidden = new HashMap<>();
+        public final HashMap<String, Bundle> data = new HashMap<>();
+    }
+
+    private final File mFile;
+    private final ClassLoader mClassLoader;
+    private final Handler mWriteHandler;
+
+    private final Object mLock = new Object();
+    private ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    private boolean mFlushScheduled = false;
+    private boolean mReset = false;
+
+    // Last data written per page, so unchanged bundles are not appended again
+    private final HashMap<String, byte[]> mLastData = new HashMap<>();
+
+    public ProgressJournal(Context context) {
+        mFile = new File(context.getFilesDir(), JOURNAL_FILE);
+        mClassLoader = context.getClassLoader();
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mWriteHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Reads the journal on the writer thread, after writing what is still pending, and waits
+     * for it. The file is only a few kilobytes.
+     *
+     * @return The recovered progress, or null if there is nothing to resume
+     */
+    public State replay() {
+        final State[] state = new State[1];
+        mWriteHandler.runWithScissors(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    mWriteHandler.removeCallbacks(mFlushRunnable);
+                }
+                mFlushRunnable.run();
+                state[0] = readJournal();
+            }
+        }, 0);
+        return state[0];
+    }
+
+    private State readJournal() {
+        if (!mFile.exists()) {
+            return null;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        final State state = new State();
+        int records = 0;
+        boolean clean = false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mFile));
+            if (in.readInt() == FORMAT_VERSION && Build.FINGERPRINT.equals(in.readUTF())) {
+                while (readRecord(in, state)) {
+                    records++;
+                }
+                clean = in.available() == 0;
+            }
+            // else bundles were parceled by another build, which is not safe to read back
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read setup progress", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        if (SetupWizardApp.DEBUG) {
+            Log.d(TAG, String.format("replayed %d records in %d ms, current page %s", records,
+                    SystemClock.elapsedRealtime() - start, state.currentPage));
+        }
+        if (state.currentPage == null) {
+            mFile.delete();
+            return null;
+        }
+        // Records appended after a torn one would never be replayed, drop the tail
+        if (!clean || mFile.length() > COMPACT_THRESHOLD) {
+            compact(state);
+        }
+        return state;
+    }
+
+    private boolean readRecord(DataInputStream in, State state) throws IOException {
+        final byte[] record;
+        try {
+            final int length = in.readInt();
+            if (length <= 0 || length > in.available()) {
+                return false;
+            }
+            record = new byte[length];
+            in.readFully(record);
+            final CRC32 crc = new CRC32();
+            crc.update(record);
+            if (in.readLong() != crc.getValue()) {
+                Log.w(TAG, "Discarding corrupt record");
+                return false;
+            }
+        } catch (EOFException e) {
+            // Torn write at the tail, everything before it is valid
+            return false;
+        }
+        final DataInputStream rin = new DataInputStream(new ByteArrayInputStream(record));
+        switch (rin.readByte()) {
+            case RECORD_CURRENT_PAGE:
+                state.currentPage = rin.readUTF();
+                break;
+            case RECORD_HIDDEN:
+                final String hiddenKey = rin.readUTF();
+                state.hidden.put(hiddenKey, rin.readBoolean());
+                break;
+            case RECORD_DATA:
+                final String dataKey = rin.readUTF();
+                final byte[] bytes = new byte[rin.readInt()];
+                rin.readFully(bytes);
+                mLastData.put(dataKey, bytes);
+                state.data.put(dataKey, unmarshall(bytes));
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    public void recordCurrentPage(Page page) {
+        append(encodeCurrentPage(page.getKey()));
+    }
+
+    public void recordHidden(Page page) {
+        append(encodeHidden(page.getKey(), page.isHidden()));
+    }
+
+    /**
+     * Appends the data of the page, unless it did not change since it was last recorded.
+     */
+    public void recordData(Page page) {
+        final byte[] data = marshall(page.getData());
+        if (Arrays.equals(data, mLastData.get(page.getKey()))) {
+            return;
+        }
+        mLastData.put(page.getKey(), data);
+        append(encodeData(page.getKey(), data));
+    }
+
+    private static byte[] encodeCurrentPage(String key) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(RECORD_CURRENT_PAGE);
+            out.writeUTF(key);
+        } catch (IOException e) {
+            // Cannot happen with an in memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeHidden(String key, boolean hidden) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(RECORD_HIDDEN);
+            out.writeUTF(key);
+            out.writeBoolean(hidden);
+        } catch (IOException e) {
+            // Cannot happen with an in memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeData(String key, byte[] data) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + 32);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(RECORD_DATA);
+            out.writeUTF(key);
+            out.writeInt(data.length);
+            out.write(data);
+        } catch (IOException e) {
+            // Cannot happen with an in memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    private void append(byte[] record) {
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+        synchronized (mLock) {
+            final DataOutputStream out = new DataOutputStream(mPending);
+            try {
+                out.writeInt(record.length);
+                out.write(record);
+                out.writeLong(crc.getValue());
+            } catch (IOException e) {
+                // Cannot happen with an in memory stream
+            }
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mWriteHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Writes pending records right away, e.g. before the process may get killed.
+     */
+    public void flush() {
+        synchronized (mLock) {
+            if (mFlushScheduled) {
+                mWriteHandler.removeCallbacks(mFlushRunnable);
+                mWriteHandler.post(mFlushRunnable);
+            }
+        }
+    }
+
+    /**
+     * Deletes the journal once setup is complete.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mPending = new ByteArrayOutputStream();
+            mFlushScheduled = false;
+            mReset = false;
+            mWriteHandler.removeCallbacks(mFlushRunnable);
+        }
+        mLastData.clear();
+        mWriteHandler.post(mDeleteRunnable);
+    }
+
+    private final Runnable mDeleteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFile.delete();
+        }
+    };
+
+    private void compact(State state) {
+        synchronized (mLock) {
+            // Pending records must follow the snapshot, so swap them out first
+            final byte[] pending = mPending.toByteArray();
+            mPending = new ByteArrayOutputStream();
+            mReset = true;
+            for (String key : state.data.keySet()) {
+                append(encodeData(key, mLastData.get(key)));
+            }
+            for (Map.Entry<String, Boolean> entry : state.hidden.entrySet()) {
+                append(encodeHidden(entry.getKey(), entry.getValue()));
+            }
+            append(encodeCurrentPage(state.currentPage));
+            mPending.write(pending, 0, pending.length);
+        }
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final byte[] bytes;
+            final boolean reset;
+            synchronized (mLock) {
+                bytes = mPending.toByteArray();
+                mPending = new ByteArrayOutputStream();
+                reset = mReset;
+                mReset = false;
+                mFlushScheduled = false;
+            }
+            if (bytes.length == 0 && !reset) {
+                return;
+            }
+            if (reset) {
+                writeCompacted(bytes);
+            } else {
+                writeAppend(bytes);
+            }
+        }
+    };
+
+    private void writeAppend(byte[] bytes) {
+        final boolean newFile = !mFile.exists();
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile, true);
+            if (newFile) {
+                writeHeader(fos);
+            }
+            fos.write(bytes);
+            // One fsync per batch
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write setup progress", e);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void writeCompacted(byte[] bytes) {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmp);
+            writeHeader(fos);
+            fos.write(bytes);
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.e(TAG, "Unable to replace setup progress journal");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to compact setup progress", e);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static void writeHeader(FileOutputStream fos) throws IOException {
+        final DataOutputStream out = new DataOutputStream(fos);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(Build.FINGERPRINT);
+        out.flush();
+    }
+
+    private static byte[] marshall(Bundle bundle) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(bundle);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private Bundle unmarshall(byte[] bytes) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            final Bundle bundle = parcel.readBundle(mClassLoader);
+            return bundle != null ? bundle : new Bundle();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -16,15 +16,18 @@
 
 package com.cyanogenmod.setupwizard.setup;
 
+import com.cyanogenmod.setupwizard.util.FinishPipeline;
+
 public interface SetupDataCallbacks {
     void onNextPage();
     void onPreviousPage();
     void onPageLoaded(Page page);
     void onPageTreeChanged();
+    void onPageHiddenChanged(Page page);
     void onFinish();
     void finishSetup();
     boolean isCurrentPage(Page page);
     Page getPage(String key);
     Page getPage(int key);
-    void addFinishRunnable(Runnable runnable);
+    void addFinishTask(FinishPipeline.Task task);
 }
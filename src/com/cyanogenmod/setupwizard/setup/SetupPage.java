@@ -21,20 +21,53 @@ import android.app.FragmentManager;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.transition.Fade;
 import android.transition.Slide;
 import android.transition.Transition;
+import android.util.Log;
 import android.view.Gravity;
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
+
+import com.cyanogenmod.setupwizard.ui.LoadingFragment;
+import com.cyanogenmod.setupwizard.ui.SetupPageFragment;
+import com.cyanogenmod.setupwizard.util.TransitionProfiler;
 
 import org.namelessrom.setupwizard.R;
+import org.namelessrom.setupwizard.SetupWizardApp;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
 
 public abstract class SetupPage implements Page {
 
+    private static final String TAG = SetupPage.class.getSimpleName();
+
+    private static final int DATA_UNKNOWN = -1;
+    private static final int DATA_NOT_LOADED = 0;
+    private static final int DATA_LOADING = 1;
+    private static final int DATA_READY = 2;
+
     private final SetupDataCallbacks mCallbacks;
 
     private Bundle mData = new Bundle();
     private boolean mRequired = false;
     private boolean mHidden = false;
 
+    // Fragment built ahead of time, only ever used for forward navigation
+    private Fragment mPreloadedFragment;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Resolved on first use, needsData() may depend on state set up by subclass constructors
+    private int mDataState = DATA_UNKNOWN;
+    private long mDataLoadStart;
+    private long mDataWaitStart;
+    private final ArrayList<Runnable> mDataCallbacks = new ArrayList<>();
+
     protected final Context mContext;
 
     protected SetupPage(Context context, SetupDataCallbacks callbacks) {
@@ -70,24 +103,206 @@ public abstract class SetupPage implements Page {
     @Override
     public void onFinishSetup() {}
 
+    /**
+     * Frees what the page holds beyond its data, once the setup data is released.
+     */
+    @Override
+    public void release() {}
+
+    /**
+     * @return Whether the fragment of this page may be built ahead of time
+     */
+    protected boolean isPreloadable() {
+        return true;
+    }
+
+    @Override
+    public boolean preload(FragmentManager fragmentManager, LayoutInflater inflater,
+            ViewGroup container) {
+        if (mPreloadedFragment != null) {
+            return true;
+        }
+        if (!isPreloadable() || fragmentManager.findFragmentByTag(getKey()) != null) {
+            return false;
+        }
+        Fragment fragment = getFragment(fragmentManager, Page.ACTION_NEXT);
+        if (fragment instanceof SetupPageFragment) {
+            ((SetupPageFragment) fragment).preinflate(inflater, container);
+        }
+        mPreloadedFragment = fragment;
+        return true;
+    }
+
+    @Override
+    public void releasePreload() {
+        mPreloadedFragment = null;
+    }
+
+    /**
+     * @return Whether the page has to load data before its fragment can be shown
+     */
+    protected boolean needsData() {
+        return false;
+    }
+
+    /**
+     * @return Whether the fragment of this page can be shown before its data is ready and
+     * fills it in once it is, see {@link #awaitData(Runnable)}, instead of a loading spinner
+     */
+    protected boolean isShownWhileLoading() {
+        return false;
+    }
+
+    /**
+     * Loads the data of this page. Called once on a background thread, before the fragment
+     * of the page is created.
+     */
+    protected void onLoadData() {}
+
+    /**
+     * @return Whether the data of this page is already at hand, e.g. preloaded by the
+     * application, so {@link #onLoadData()} would return right away. Called on the main
+     * thread, must not block.
+     */
+    protected boolean hasDataAvailable() {
+        return false;
+    }
+
+    private int getDataState() {
+        if (mDataState == DATA_UNKNOWN) {
+            mDataState = needsData() ? DATA_NOT_LOADED : DATA_READY;
+        }
+        return mDataState;
+    }
+
+    private void runLoadData() {
+        try {
+            onLoadData();
+        } catch (RuntimeException e) {
+            // Let the fragment cope with missing data rather than wait forever
+            Log.e(TAG, "Unable to load data for " + getKey(), e);
+        }
+    }
+
+    /**
+     * Drops the loaded data and loads it again in the background, e.g. when it was loaded for
+     * another locale. Has no effect unless the data is ready.
+     */
+    protected void reloadData() {
+        if (getDataState() == DATA_READY) {
+            mDataState = DATA_NOT_LOADED;
+            loadData(AbstractSetupData.DATA_LOAD_EXECUTOR);
+        }
+    }
+
+    @Override
+    public boolean isDataReady() {
+        return getDataState() == DATA_READY;
+    }
+
+    @Override
+    public void loadData(Executor executor) {
+        if (getDataState() != DATA_NOT_LOADED) {
+            return;
+        }
+        mDataState = DATA_LOADING;
+        mDataLoadStart = SystemClock.elapsedRealtime();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runLoadData();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onDataLoaded();
+                    }
+                });
+            }
+        });
+    }
+
+    private void onDataLoaded() {
+        if (mDataState == DATA_READY) {
+            // Already taken over on the main thread, see doLoadAction()
+            return;
+        }
+        mDataState = DATA_READY;
+        if (SetupWizardApp.DEBUG) {
+            final long now = SystemClock.elapsedRealtime();
+            Log.d(TAG, String.format("%s: data loaded in %d ms, shown loading for %d ms",
+                    getKey(), now - mDataLoadStart,
+                    mDataWaitStart != 0 ? now - mDataWaitStart : 0));
+        }
+        mDataWaitStart = 0;
+        final Runnable[] callbacks = mDataCallbacks.toArray(new Runnable[mDataCallbacks.size()]);
+        mDataCallbacks.clear();
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    @Override
+    public void awaitData(Runnable callback) {
+        if (isDataReady()) {
+            callback.run();
+        } else if (!mDataCallbacks.contains(callback)) {
+            mDataCallbacks.add(callback);
+        }
+    }
+
+    @Override
+    public void cancelAwaitData(Runnable callback) {
+        mDataCallbacks.remove(callback);
+    }
+
+    private String getLoadingTag() {
+        return getKey() + LoadingFragment.TAG_SUFFIX_AWAITING_DATA;
+    }
+
     @Override
     public void doLoadAction(FragmentManager fragmentManager, int action) {
-        Fragment fragment = getFragment(fragmentManager, action);
-        if (action == Page.ACTION_NEXT) {
-            Transition t = new Slide(Gravity.RIGHT);
-            t.setDuration(200);
-            fragment.setEnterTransition(t);
-            fragmentManager.beginTransaction()
-                    .replace(R.id.content,fragment, getKey())
-                    .commit();
+        final boolean replacesLoading = fragmentManager.findFragmentByTag(getLoadingTag()) != null;
+        Fragment fragment;
+        String tag;
+        if (!isDataReady() && hasDataAvailable()) {
+            // Cheap enough for the main thread, and spares a loading spinner
+            mDataLoadStart = SystemClock.elapsedRealtime();
+            runLoadData();
+            onDataLoaded();
+        }
+        if (!isDataReady()) {
+            loadData(AbstractSetupData.DATA_LOAD_EXECUTOR);
+        }
+        final boolean showsLoading = !isDataReady() && !isShownWhileLoading();
+        if (showsLoading) {
+            // Data did not make it in time, show a spinner until it does
+            mDataWaitStart = SystemClock.elapsedRealtime();
+            fragment = LoadingFragment.newAwaitingDataInstance(getKey(), action);
+            tag = getLoadingTag();
         } else {
-            Transition t = new Slide(Gravity.LEFT);
-            t.setDuration(200);
-            fragment.setEnterTransition(t);
-            fragmentManager.beginTransaction()
-                    .replace(R.id.content, fragment, getKey())
-                    .commit();
+            fragment = mPreloadedFragment;
+            mPreloadedFragment = null;
+            if (fragment == null || action != Page.ACTION_NEXT
+                    || fragmentManager.findFragmentByTag(getKey()) != null) {
+                fragment = getFragment(fragmentManager, action);
+            }
+            tag = getKey();
         }
+        Transition t;
+        if (replacesLoading) {
+            // Already slid in as the loading spinner
+            t = new Fade();
+        } else {
+            t = new Slide(action == Page.ACTION_NEXT ? Gravity.RIGHT : Gravity.LEFT);
+        }
+        t.setDuration(200);
+        if (TransitionProfiler.isEnabled() && !showsLoading) {
+            TransitionProfiler.get().onPageLoading(getKey(), t);
+        }
+        fragment.setEnterTransition(t);
+        fragmentManager.beginTransaction()
+                .replace(R.id.content, fragment, tag)
+                .commit();
     }
 
     @Override
@@ -113,7 +328,10 @@ public abstract class SetupPage implements Page {
 
     @Override
     public Page setHidden(boolean hidden) {
-        mHidden = hidden;
+        if (mHidden != hidden) {
+            mHidden = hidden;
+            mCallbacks.onPageHiddenChanged(this);
+        }
         return this;
     }
 
@@ -26,11 +26,11 @@ import android.content.res.Resources;
 import android.os.Bundle;
 import android.os.Handler;
 import android.view.View;
-import android.widget.ArrayAdapter;
 import android.widget.NumberPicker;
 
 import com.cyanogenmod.setupwizard.ui.LocalePicker;
 import com.cyanogenmod.setupwizard.ui.SetupPageFragment;
+import com.cyanogenmod.setupwizard.util.LocaleCatalog;
 
 import org.namelessrom.setupwizard.R;
 
@@ -46,6 +46,22 @@ public class WelcomePage extends SetupPage {
         super(context, callbacks);
     }
 
+    @Override
+    protected boolean needsData() {
+        return true;
+    }
+
+    @Override
+    protected void onLoadData() {
+        // Usually already preloaded by the application
+        LocaleCatalog.get(mContext);
+    }
+
+    @Override
+    protected boolean hasDataAvailable() {
+        return LocaleCatalog.isLoaded();
+    }
+
     @Override
     public Fragment getFragment(FragmentManager fragmentManager, int action) {
         Fragment fragment = fragmentManager.findFragmentByTag(getKey());
@@ -89,10 +105,9 @@ public class WelcomePage extends SetupPage {
 
     public static class WelcomeFragment extends SetupPageFragment {
 
-        private ArrayAdapter<com.android.internal.app.LocalePicker.LocaleInfo> mLocaleAdapter;
+        private LocaleCatalog mLocaleCatalog;
         private Locale mInitialLocale;
         private Locale mCurrentLocale;
-        private int[] mAdapterIndices;
 
         private LocalePicker mLanguagePicker;
 
@@ -118,22 +133,13 @@ public class WelcomePage extends SetupPage {
         }
 
         private void loadLanguages() {
-            mLocaleAdapter = com.android.internal.app.LocalePicker.constructAdapter(getActivity(), R.layout.locale_picker_item, R.id.locale);
+            mLocaleCatalog = LocaleCatalog.get(getActivity());
             mInitialLocale = Locale.getDefault();
             mCurrentLocale = mInitialLocale;
-            mAdapterIndices = new int[mLocaleAdapter.getCount()];
-            int currentLocaleIndex = 0;
-            String [] labels = new String[mLocaleAdapter.getCount()];
-            for (int i=0; i<mAdapterIndices.length; i++) {
-                com.android.internal.app.LocalePicker.LocaleInfo localLocaleInfo = mLocaleAdapter.getItem(i);
-                Locale localLocale = localLocaleInfo.getLocale();
-                if (localLocale.equals(mCurrentLocale)) {
-                    currentLocaleIndex = i;
-                }
-                mAdapterIndices[i] = i;
-                labels[i] = localLocaleInfo.getLabel();
-            }
+            final int currentLocaleIndex = Math.max(0, mLocaleCatalog.indexOf(mCurrentLocale));
+            final String[] labels = mLocaleCatalog.getLabels();
             mLanguagePicker.setDisplayedValues(labels);
+            mLanguagePicker.setSearchAliases(mLocaleCatalog.getSearchAliases());
             mLanguagePicker.setMaxValue(labels.length - 1);
             mLanguagePicker.setValue(currentLocaleIndex);
             mLanguagePicker.setDescendantFocusability(NumberPicker.FOCUS_BLOCK_DESCENDANTS);
@@ -145,9 +151,7 @@ public class WelcomePage extends SetupPage {
         }
 
         private void setLocaleFromPicker() {
-            int i = mAdapterIndices[mLanguagePicker.getValue()];
-            final com.android.internal.app.LocalePicker.LocaleInfo localLocaleInfo = mLocaleAdapter.getItem(i);
-            onLocaleChanged(localLocaleInfo.getLocale());
+            onLocaleChanged(mLocaleCatalog.getLocale(mLanguagePicker.getValue()));
         }
 
         private void onLocaleChanged(Locale paramLocale) {
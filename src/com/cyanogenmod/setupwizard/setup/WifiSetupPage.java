@@ -22,36 +22,31 @@ import android.app.FragmentManager;
 import android.content.Context;
 import android.content.Intent;
 import android.net.ConnectivityManager;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
-import android.provider.Settings;
 import android.util.Log;
 
 import org.namelessrom.setupwizard.SetupWizardApp;
 import com.cyanogenmod.setupwizard.ui.LoadingFragment;
 import com.cyanogenmod.setupwizard.ui.SetupPageFragment;
+import com.cyanogenmod.setupwizard.util.CaptivePortalProbe;
 import com.cyanogenmod.setupwizard.util.SetupWizardUtils;
 
 import org.namelessrom.setupwizard.R;
 
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-
 public class WifiSetupPage extends SetupPage {
 
     public static final String TAG = "WifiSetupPage";
 
-    private static final String DEFAULT_SERVER = "clients3.google.com";
-    private static final int CAPTIVE_PORTAL_SOCKET_TIMEOUT_MS = 10000;
-
     private static final String CAPTIVE_PORTAL_LOGIN_ACTION
             = "android.net.action.captive_portal_login";
 
     private LoadingFragment mLoadingFragment;
 
-    private URL mCaptivePortalUrl;
+    private volatile String mProbedNetworkKey;
 
     private boolean mIsCaptivePortal = false;
 
@@ -94,15 +89,28 @@ public class WifiSetupPage extends SetupPage {
         }
     };
 
+    // Building the probe reads settings and the stored latencies, keep it off the main thread
+    private final Runnable mCheckForCaptivePortalRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final CaptivePortalProbe probe = SetupWizardApp.get().getCaptivePortalProbe();
+            final String networkKey = getNetworkKey();
+            mProbedNetworkKey = networkKey;
+            probe.probe(networkKey, mCaptivePortalCallback);
+        }
+    };
+
+    private final CaptivePortalProbe.Callback mCaptivePortalCallback =
+            new CaptivePortalProbe.Callback() {
+        @Override
+        public void onResult(boolean isCaptivePortal) {
+            mIsCaptivePortal = isCaptivePortal;
+            mHandler.post(mFinishCaptivePortalCheckRunnable);
+        }
+    };
+
     public WifiSetupPage(Context context, SetupDataCallbacks callbacks) {
         super(context, callbacks);
-        String server = Settings.Global.getString(context.getContentResolver(), "captive_portal_server");
-        if (server == null) server = DEFAULT_SERVER;
-        try {
-            mCaptivePortalUrl = new URL("http://" + server + "/generate_204");
-        } catch (MalformedURLException e) {
-            Log.e(TAG, "Not a valid url" + e);
-        }
     }
 
     @Override
@@ -134,6 +142,12 @@ public class WifiSetupPage extends SetupPage {
     }
 
 
+    @Override
+    protected boolean isPreloadable() {
+        // Launches an external activity from its loading fragment
+        return false;
+    }
+
     @Override
     public void doLoadAction(FragmentManager fragmentManager, int action) {
         super.doLoadAction(fragmentManager, action);
@@ -151,6 +165,16 @@ public class WifiSetupPage extends SetupPage {
                 getCallbacks().onNextPage();
             }
         } else if (requestCode == SetupWizardApp.REQUEST_CODE_SETUP_CAPTIVE_PORTAL) {
+            // The user may have logged in, the verdict no longer holds
+            final String networkKey = mProbedNetworkKey;
+            if (networkKey != null) {
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        SetupWizardApp.get().getCaptivePortalProbe().invalidate(networkKey);
+                    }
+                });
+            }
             if (resultCode == Activity.RESULT_CANCELED) {
                 launchWifiSetup();
             } else {
@@ -163,42 +187,13 @@ public class WifiSetupPage extends SetupPage {
     }
 
     private void checkForCaptivePortal() {
-        new Thread() {
-            @Override
-            public void run() {
-                mIsCaptivePortal = isCaptivePortal();
-                mHandler.post(mFinishCaptivePortalCheckRunnable);
-            }
-        }.start();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(mCheckForCaptivePortalRunnable);
     }
 
-    // Don't run on UI thread
-    private boolean isCaptivePortal() {
-        if (mCaptivePortalUrl == null) return false;
-        HttpURLConnection urlConnection = null;
-        try {
-            urlConnection = (HttpURLConnection) mCaptivePortalUrl.openConnection();
-            urlConnection.setInstanceFollowRedirects(false);
-            urlConnection.setConnectTimeout(CAPTIVE_PORTAL_SOCKET_TIMEOUT_MS);
-            urlConnection.setReadTimeout(CAPTIVE_PORTAL_SOCKET_TIMEOUT_MS);
-            urlConnection.setUseCaches(false);
-            urlConnection.getInputStream();
-            // We got a valid response, but not from the real google
-            final int responseCode = urlConnection.getResponseCode();
-            if (responseCode == 408 || responseCode == 504) {
-                // If we timeout here, we'll try and go through captive portal login
-                return true;
-            }
-            return urlConnection.getResponseCode() != 204;
-        } catch (IOException e) {
-            Log.e(TAG, "Captive portal check - probably not a portal: exception "
-                    + e);
-            return false;
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-        }
+    private String getNetworkKey() {
+        final WifiInfo info = ((WifiManager) mContext.getSystemService(Context.WIFI_SERVICE))
+                .getConnectionInfo();
+        return info != null ? info.getSSID() + "/" + info.getBSSID() : "";
     }
 
     private void launchWifiSetup() {
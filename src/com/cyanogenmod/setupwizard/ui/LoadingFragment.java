@@ -19,12 +19,42 @@ package com.cyanogenmod.setupwizard.ui;
 import android.content.Intent;
 import android.os.Bundle;
 
+import com.cyanogenmod.setupwizard.setup.Page;
+
 import org.namelessrom.setupwizard.R;
 
 public class LoadingFragment extends SetupPageFragment {
 
+    public static final String TAG_SUFFIX_AWAITING_DATA = "_loading";
+
+    private static final String KEY_AWAIT_DATA = "await_data";
+
     private StartActivityForResultRunnable mStartActivityForResultRunnable;
 
+    private final Runnable mDataReadyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (isResumed()) {
+                // Swap in the real fragment of the page
+                mPage.doLoadAction(getFragmentManager(),
+                        getArguments().getInt(Page.KEY_PAGE_ACTION, Page.ACTION_NEXT));
+            }
+        }
+    };
+
+    /**
+     * Creates a loading fragment standing in for the given page until its data is ready.
+     */
+    public static LoadingFragment newAwaitingDataInstance(String key, int action) {
+        Bundle args = new Bundle();
+        args.putString(Page.KEY_PAGE_ARGUMENT, key);
+        args.putInt(Page.KEY_PAGE_ACTION, action);
+        args.putBoolean(KEY_AWAIT_DATA, true);
+        LoadingFragment fragment = new LoadingFragment();
+        fragment.setArguments(args);
+        return fragment;
+    }
+
     @Override
     public void startActivityForResult(Intent intent, int requestCode, Bundle options) {
         if (isResumed()) {
@@ -41,12 +71,18 @@ public class LoadingFragment extends SetupPageFragment {
         if (mStartActivityForResultRunnable != null) {
             mStartActivityForResultRunnable.run();
         }
+        if (getArguments().getBoolean(KEY_AWAIT_DATA)) {
+            mPage.awaitData(mDataReadyRunnable);
+        }
     }
 
     @Override
     public void onPause() {
         super.onPause();
         mStartActivityForResultRunnable = null;
+        if (mPage != null) {
+            mPage.cancelAwaitData(mDataReadyRunnable);
+        }
     }
 
     @Override
@@ -35,6 +35,7 @@ import android.text.Spanned;
 import android.text.TextUtils;
 import android.text.method.NumberKeyListener;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.util.SparseArray;
 import android.util.TypedValue;
 import android.view.KeyEvent;
@@ -57,13 +58,19 @@ import android.widget.LinearLayout;
 import android.widget.Scroller;
 import android.widget.TextView;
 
+import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
 import libcore.icu.LocaleData;
 
+import com.cyanogenmod.setupwizard.util.TransitionProfiler;
+
+import org.namelessrom.setupwizard.SetupWizardApp;
+
 /**
  * A widget that enables the user to select a number form a predefined range.
  * There are two flavors of this widget and which one is presented to the user
@@ -95,6 +102,8 @@ import libcore.icu.LocaleData;
 @Widget
 public class LocalePicker extends LinearLayout {
 
+    private static final String TAG = LocalePicker.class.getSimpleName();
+
     /**
      * The number of items show in the selector wheel.
      */
@@ -264,6 +273,46 @@ public class LocalePicker extends LinearLayout {
      */
     private String[] mDisplayedValues;
 
+    /**
+     * Additional search terms per displayed value, e.g. English name and ISO code.
+     */
+    private String[][] mSearchAliases;
+
+    /**
+     * Sorted case folded search keys, with the displayed value index each key maps to.
+     */
+    private String[] mSearchKeys;
+    private int[] mSearchKeyValues;
+
+    /**
+     * Sparse table over {@link #mSearchKeyValues}: level k holds the smallest value index of
+     * the 2^k keys starting at each position, so the first shown match of a prefix range is
+     * found in constant time.
+     */
+    private int[][] mSearchKeyMinValues;
+
+    /**
+     * Whether the search index has to be rebuilt before the next lookup.
+     */
+    private boolean mSearchIndexDirty;
+
+    /**
+     * Holds the last input folded by {@link #foldCase(CharSequence)}, which runs on every
+     * keystroke.
+     */
+    private char[] mFoldBuffer = new char[32];
+    private int mFoldLength;
+
+    /**
+     * Folded form of the non ASCII characters seen so far.
+     */
+    private final SparseArray<String> mFoldedChars = new SparseArray<String>();
+
+    /**
+     * Case folded displayed values, to tell label matches from alias matches.
+     */
+    private String[] mFoldedDisplayedValues;
+
     /**
      * Lower value of the range of numbers allowed for the NumberPicker
      */
@@ -300,9 +349,28 @@ public class LocalePicker extends LinearLayout {
     private long mLongPressUpdateInterval = DEFAULT_LONG_PRESS_UPDATE_INTERVAL;
 
     /**
-     * Cache for the string representation of selector indices.
+     * String representation of every selectable value, indexed by value - min value.
+     * Built up front so scrolling and drawing never have to create strings.
+     */
+    private String[] mSelectorValues = new String[0];
+
+    /**
+     * Whether {@link #mSelectorValues} has to be rebuilt before it is used.
+     */
+    private boolean mSelectorValuesDirty = true;
+
+    /**
+     * Frame statistics of the current fling or drag, only tracked in debug builds.
      */
-    private final SparseArray<String> mSelectorIndexToStringCache = new SparseArray<String>();
+    private long mLastScrollFrameNanos;
+    private int mScrollFrames;
+    private int mJankyScrollFrames;
+
+    /**
+     * Interval between two scroll frames above which a frame counts as janky: one and a half
+     * vsyncs of the display, as frames are timed when drawn rather than at vsync.
+     */
+    private long mJankFrameNanos;
 
     /**
      * The selector indices whose value are show by the selector.
@@ -1142,6 +1210,7 @@ public class LocalePicker extends LinearLayout {
             return;
         }
         mFormatter = formatter;
+        mSelectorValuesDirty = true;
         initializeSelectorWheelIndices();
         updateInputTextView();
     }
@@ -1334,6 +1403,7 @@ public class LocalePicker extends LinearLayout {
             throw new IllegalArgumentException("minValue must be >= 0");
         }
         mMinValue = minValue;
+        mSelectorValuesDirty = true;
         if (mMinValue > mValue) {
             mValue = mMinValue;
         }
@@ -1372,6 +1442,7 @@ public class LocalePicker extends LinearLayout {
             throw new IllegalArgumentException("maxValue must be >= 0");
         }
         mMaxValue = maxValue;
+        mSelectorValuesDirty = true;
         if (mMaxValue < mValue) {
             mValue = mMaxValue;
         }
@@ -1406,6 +1477,12 @@ public class LocalePicker extends LinearLayout {
             return;
         }
         mDisplayedValues = displayedValues;
+        mSelectorValuesDirty = true;
+        if (mSearchAliases != null && (displayedValues == null
+                || mSearchAliases.length != displayedValues.length)) {
+            mSearchAliases = null;
+        }
+        mSearchIndexDirty = true;
         if (mDisplayedValues != null) {
             // Allow text entry rather than strictly numeric entry.
             mInputText.setRawInputType(InputType.TYPE_CLASS_TEXT
@@ -1418,6 +1495,191 @@ public class LocalePicker extends LinearLayout {
         tryComputeMaxWidth();
     }
 
+    /**
+     * Sets additional terms typed input may match for each displayed value.
+     *
+     * @param searchAliases One array of terms per displayed value, or null.
+     */
+    public void setSearchAliases(String[][] searchAliases) {
+        mSearchAliases = searchAliases;
+        mSearchIndexDirty = true;
+    }
+
+    /**
+     * Builds the sorted prefix index over the case folded displayed values and aliases, once
+     * after the values or aliases changed.
+     */
+    private void ensureSearchIndex() {
+        if (!mSearchIndexDirty) {
+            return;
+        }
+        mSearchIndexDirty = false;
+        if (mDisplayedValues == null) {
+            mSearchKeys = null;
+            mSearchKeyValues = null;
+            mSearchKeyMinValues = null;
+            mFoldedDisplayedValues = null;
+            return;
+        }
+        final int count = mDisplayedValues.length;
+        final ArrayList<SearchKey> keys = new ArrayList<SearchKey>(count);
+        mFoldedDisplayedValues = new String[count];
+        for (int i = 0; i < count; i++) {
+            mFoldedDisplayedValues[i] = foldCaseToString(mDisplayedValues[i]);
+            keys.add(new SearchKey(mFoldedDisplayedValues[i], i));
+            if (mSearchAliases != null && mSearchAliases[i] != null) {
+                for (String alias : mSearchAliases[i]) {
+                    if (!TextUtils.isEmpty(alias)) {
+                        keys.add(new SearchKey(foldCaseToString(alias), i));
+                    }
+                }
+            }
+        }
+        Collections.sort(keys);
+        final int keyCount = keys.size();
+        mSearchKeys = new String[keyCount];
+        mSearchKeyValues = new int[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            mSearchKeys[i] = keys.get(i).mKey;
+            mSearchKeyValues[i] = keys.get(i).mValueIndex;
+        }
+        final int levels = keyCount > 0 ? 32 - Integer.numberOfLeadingZeros(keyCount) : 0;
+        mSearchKeyMinValues = new int[levels][];
+        if (levels > 0) {
+            mSearchKeyMinValues[0] = mSearchKeyValues;
+        }
+        for (int k = 1; k < levels; k++) {
+            final int[] previous = mSearchKeyMinValues[k - 1];
+            final int half = 1 << (k - 1);
+            final int[] level = new int[keyCount - (1 << k) + 1];
+            for (int i = 0; i < level.length; i++) {
+                level[i] = Math.min(previous[i], previous[i + half]);
+            }
+            mSearchKeyMinValues[k] = level;
+        }
+    }
+
+    /**
+     * @return The displayed value index whose label or alias starts with the case folded
+     * <code>typed</code> text, or -1 if none does. Leaves the folded text in
+     * {@link #mFoldBuffer}.
+     */
+    private int findByPrefix(CharSequence typed) {
+        ensureSearchIndex();
+        foldCase(typed);
+        if (mSearchKeys == null || mFoldLength == 0) {
+            return -1;
+        }
+        // Keys sharing the prefix are adjacent but sorted by key, not by position in the
+        // list: pick the one shown first
+        final int lo = searchPrefixRange(0);
+        final int hi = searchPrefixRange(1);
+        if (lo >= hi) {
+            return -1;
+        }
+        final int k = 31 - Integer.numberOfLeadingZeros(hi - lo);
+        final int[] level = mSearchKeyMinValues[k];
+        return Math.min(level[lo], level[hi - (1 << k)]);
+    }
+
+    /**
+     * @return The first search key comparing at least <code>bound</code> against the folded
+     * prefix, 0 giving the start of the keys with that prefix and 1 their end
+     */
+    private int searchPrefixRange(int bound) {
+        int lo = 0;
+        int hi = mSearchKeys.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (comparePrefix(mSearchKeys[mid]) < bound) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return Less than, equal to or greater than 0 as the start of <code>key</code> sorts
+     * before, matches or sorts after the folded prefix
+     */
+    private int comparePrefix(String key) {
+        final int length = Math.min(key.length(), mFoldLength);
+        for (int i = 0; i < length; i++) {
+            final char c = key.charAt(i);
+            if (c != mFoldBuffer[i]) {
+                return c < mFoldBuffer[i] ? -1 : 1;
+            }
+        }
+        return length < mFoldLength ? -1 : 0;
+    }
+
+    /**
+     * Locale independent case folding that also drops diacritics, so "espanol"
+     * finds "Español". The result is left in {@link #mFoldBuffer}, without allocating once
+     * the characters were seen before.
+     */
+    private void foldCase(CharSequence value) {
+        mFoldLength = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            // Typed text is mostly ASCII, which has nothing to decompose
+            if (c <= 0x7f) {
+                appendFolded(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+                continue;
+            }
+            String folded = mFoldedChars.get(c);
+            if (folded == null) {
+                folded = foldChar(c);
+                mFoldedChars.put(c, folded);
+            }
+            for (int j = 0; j < folded.length(); j++) {
+                appendFolded(folded.charAt(j));
+            }
+        }
+    }
+
+    private String foldCaseToString(String value) {
+        foldCase(value);
+        return new String(mFoldBuffer, 0, mFoldLength);
+    }
+
+    private void appendFolded(char c) {
+        if (mFoldLength == mFoldBuffer.length) {
+            mFoldBuffer = Arrays.copyOf(mFoldBuffer, mFoldLength * 2);
+        }
+        mFoldBuffer[mFoldLength++] = c;
+    }
+
+    private static String foldChar(char c) {
+        final String decomposed = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+        final StringBuilder folded = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            final char d = decomposed.charAt(i);
+            if (Character.getType(d) != Character.NON_SPACING_MARK) {
+                folded.append(Character.toLowerCase(Character.toUpperCase(d)));
+            }
+        }
+        return folded.toString();
+    }
+
+    private static final class SearchKey implements Comparable<SearchKey> {
+        final String mKey;
+        final int mValueIndex;
+
+        SearchKey(String key, int valueIndex) {
+            mKey = key;
+            mValueIndex = valueIndex;
+        }
+
+        @Override
+        public int compareTo(SearchKey other) {
+            final int result = mKey.compareTo(other.mKey);
+            return result != 0 ? result : mValueIndex - other.mValueIndex;
+        }
+    }
+
     @Override
     protected float getTopFadingEdgeStrength() {
         return TOP_AND_BOTTOM_FADING_EDGE_STRENGTH;
@@ -1458,11 +1720,15 @@ public class LocalePicker extends LinearLayout {
             }
         }
 
+        if (SetupWizardApp.DEBUG && mScrollState != OnScrollListener.SCROLL_STATE_IDLE) {
+            trackScrollFrame();
+        }
+
         // draw the selector wheel
         int[] selectorIndices = mSelectorIndices;
         for (int i = 0; i < selectorIndices.length; i++) {
             int selectorIndex = selectorIndices[i];
-            String scrollSelectorValue = mSelectorIndexToStringCache.get(selectorIndex);
+            String scrollSelectorValue = getSelectorValue(selectorIndex);
             // Do not draw the middle item if input is visible since the input
             // is shown only if the wheel is static and it covers the middle
             // item. Otherwise, if the user starts editing the text via the
@@ -1560,7 +1826,7 @@ public class LocalePicker extends LinearLayout {
      * these indices.
      */
     private void initializeSelectorWheelIndices() {
-        mSelectorIndexToStringCache.clear();
+        ensureSelectorValues();
         int[] selectorIndices = mSelectorIndices;
         int current = getValue();
         for (int i = 0; i < mSelectorIndices.length; i++) {
@@ -1569,7 +1835,6 @@ public class LocalePicker extends LinearLayout {
                 selectorIndex = getWrappedSelectorIndex(selectorIndex);
             }
             selectorIndices[i] = selectorIndex;
-            ensureCachedScrollSelectorValue(selectorIndices[i]);
         }
     }
 
@@ -1675,6 +1940,14 @@ public class LocalePicker extends LinearLayout {
             return;
         }
         mScrollState = scrollState;
+        if (SetupWizardApp.DEBUG && scrollState == OnScrollListener.SCROLL_STATE_IDLE
+                && mScrollFrames > 0) {
+            Log.d(TAG, String.format("scroll frames=%d janky=%d", mScrollFrames,
+                    mJankyScrollFrames));
+            mLastScrollFrameNanos = 0;
+            mScrollFrames = 0;
+            mJankyScrollFrames = 0;
+        }
         if (mOnScrollListener != null) {
             mOnScrollListener.onScrollStateChange(this, scrollState);
         }
@@ -1720,7 +1993,6 @@ public class LocalePicker extends LinearLayout {
             nextScrollSelectorIndex = mMinValue;
         }
         selectorIndices[selectorIndices.length - 1] = nextScrollSelectorIndex;
-        ensureCachedScrollSelectorValue(nextScrollSelectorIndex);
     }
 
     /**
@@ -1736,30 +2008,54 @@ public class LocalePicker extends LinearLayout {
             nextScrollSelectorIndex = mMaxValue;
         }
         selectorIndices[0] = nextScrollSelectorIndex;
-        ensureCachedScrollSelectorValue(nextScrollSelectorIndex);
     }
 
     /**
-     * Ensures we have a cached string representation of the given <code>
-     * selectorIndex</code> to avoid multiple instantiations of the same string.
+     * Builds the string representation of every selectable value, so that
+     * scrolling and drawing only have to index into an array.
      */
-    private void ensureCachedScrollSelectorValue(int selectorIndex) {
-        SparseArray<String> cache = mSelectorIndexToStringCache;
-        String scrollSelectorValue = cache.get(selectorIndex);
-        if (scrollSelectorValue != null) {
+    private void ensureSelectorValues() {
+        if (!mSelectorValuesDirty) {
             return;
         }
-        if (selectorIndex < mMinValue || selectorIndex > mMaxValue) {
-            scrollSelectorValue = "";
-        } else {
+        final int count = Math.max(0, mMaxValue - mMinValue + 1);
+        final String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
             if (mDisplayedValues != null) {
-                int displayedValueIndex = selectorIndex - mMinValue;
-                scrollSelectorValue = mDisplayedValues[displayedValueIndex];
+                values[i] = i < mDisplayedValues.length ? mDisplayedValues[i] : "";
             } else {
-                scrollSelectorValue = formatNumber(selectorIndex);
+                values[i] = formatNumber(mMinValue + i);
             }
         }
-        cache.put(selectorIndex, scrollSelectorValue);
+        mSelectorValues = values;
+        mSelectorValuesDirty = false;
+    }
+
+    /**
+     * @return The string representation of the given <code>selectorIndex</code>.
+     */
+    private String getSelectorValue(int selectorIndex) {
+        if (selectorIndex < mMinValue || selectorIndex > mMaxValue) {
+            return "";
+        }
+        return mSelectorValues[selectorIndex - mMinValue];
+    }
+
+    /**
+     * Counts the frames drawn while scrolling, and those that missed a vsync.
+     */
+    private void trackScrollFrame() {
+        final long now = System.nanoTime();
+        if (mJankFrameNanos == 0) {
+            mJankFrameNanos = TransitionProfiler.getFrameIntervalNanos(getContext()) * 3 / 2;
+        }
+        if (mLastScrollFrameNanos != 0) {
+            mScrollFrames++;
+            if (now - mLastScrollFrameNanos > mJankFrameNanos) {
+                mJankyScrollFrames++;
+            }
+        }
+        mLastScrollFrameNanos = now;
     }
 
     private String formatNumber(int value) {
@@ -1885,12 +2181,10 @@ public class LocalePicker extends LinearLayout {
                 // Ignore as if it's not a number we don't care
             }
         } else {
-            for (int i = 0; i < mDisplayedValues.length; i++) {
-                // Don't force the user to type in jan when ja will do
-                value = value.toLowerCase();
-                if (mDisplayedValues[i].toLowerCase().startsWith(value)) {
-                    return mMinValue + i;
-                }
+            // Don't force the user to type in jan when ja will do
+            int index = findByPrefix(value);
+            if (index != -1) {
+                return mMinValue + index;
             }
 
             /*
@@ -1989,13 +2283,16 @@ public class LocalePicker extends LinearLayout {
                 }
                 String result = String.valueOf(dest.subSequence(0, dstart)) + filtered
                         + dest.subSequence(dend, dest.length());
-                String str = String.valueOf(result).toLowerCase();
-                for (String val : mDisplayedValues) {
-                    String valLowerCase = val.toLowerCase();
-                    if (valLowerCase.startsWith(str)) {
+                int index = findByPrefix(result);
+                if (index != -1) {
+                    String val = mDisplayedValues[index];
+                    if (comparePrefix(mFoldedDisplayedValues[index]) == 0
+                            && val.length() >= result.length()) {
                         postSetSelectionCommand(result.length(), val.length());
                         return val.subSequence(dstart, val.length());
                     }
+                    // Matched an alias, keep the typed text and resolve it on commit
+                    return filtered;
                 }
                 return "";
             }
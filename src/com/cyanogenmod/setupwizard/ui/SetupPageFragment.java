@@ -20,13 +20,16 @@ import android.app.Activity;
 import android.app.Fragment;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.TextView;
 
 import com.cyanogenmod.setupwizard.setup.Page;
 import com.cyanogenmod.setupwizard.setup.SetupDataCallbacks;
+import com.cyanogenmod.setupwizard.util.TransitionProfiler;
 
 import org.namelessrom.setupwizard.R;
 
@@ -39,6 +42,8 @@ public abstract class SetupPageFragment extends Fragment {
     protected TextView mTitleView;
     protected ViewGroup mHeaderView;
 
+    private View mPreinflatedView;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -48,10 +53,31 @@ public abstract class SetupPageFragment extends Fragment {
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
             Bundle savedInstanceState) {
-        mRootView = inflater.inflate(getLayoutResource(), container, false);
+        final long start = SystemClock.uptimeMillis();
+        if (mPreinflatedView != null) {
+            mRootView = mPreinflatedView;
+            mPreinflatedView = null;
+        } else {
+            mRootView = inflater.inflate(getLayoutResource(), container, false);
+        }
         mTitleView = (TextView) mRootView.findViewById(android.R.id.title);
         mHeaderView = (ViewGroup )  mRootView.findViewById(R.id.header);
+        final long inflated = SystemClock.uptimeMillis();
         initializePage();
+        if (TransitionProfiler.isEnabled()) {
+            final TransitionProfiler profiler = TransitionProfiler.get();
+            profiler.onPageInflated(mKey, inflated - start,
+                    SystemClock.uptimeMillis() - inflated);
+            mRootView.getViewTreeObserver().addOnPreDrawListener(
+                    new ViewTreeObserver.OnPreDrawListener() {
+                        @Override
+                        public boolean onPreDraw() {
+                            mRootView.getViewTreeObserver().removeOnPreDrawListener(this);
+                            profiler.onPageFirstFrame(mKey);
+                            return true;
+                        }
+                    });
+        }
         return mRootView;
     }
 
@@ -96,6 +122,13 @@ public abstract class SetupPageFragment extends Fragment {
         mPage.onActivityResult(requestCode, resultCode, data);
     }
 
+    /**
+     * Inflates the layout ahead of time, so it is ready when the fragment gets added.
+     */
+    public void preinflate(LayoutInflater inflater, ViewGroup container) {
+        mPreinflatedView = inflater.inflate(getLayoutResource(), container, false);
+    }
+
     protected abstract void initializePage();
     protected abstract int getLayoutResource();
 
@@ -26,14 +26,18 @@ import android.content.res.Resources;
 import android.content.res.ThemeManager;
 import android.graphics.Bitmap;
 import android.graphics.Point;
+import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewAnimationUtils;
+import android.view.ViewGroup;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 import android.widget.Button;
@@ -42,12 +46,17 @@ import android.widget.ProgressBar;
 
 import org.namelessrom.setupwizard.SetupWizardApp;
 import com.cyanogenmod.setupwizard.setup.CMSetupWizardData;
+import com.cyanogenmod.setupwizard.setup.FinishPage;
 import com.cyanogenmod.setupwizard.setup.Page;
 import com.cyanogenmod.setupwizard.setup.SetupDataCallbacks;
 import com.cyanogenmod.setupwizard.util.EnableAccessibilityController;
+import com.cyanogenmod.setupwizard.util.FinishPipeline;
+import com.cyanogenmod.setupwizard.util.RevealWallpaper;
+import com.cyanogenmod.setupwizard.util.SettingsBatch;
 import com.cyanogenmod.setupwizard.util.SetupWizardUtils;
-
-import java.util.ArrayList;
+import com.cyanogenmod.setupwizard.util.TelephonySnapshot;
+import com.cyanogenmod.setupwizard.util.StartupTracer;
+import com.cyanogenmod.setupwizard.util.TransitionProfiler;
 
 import org.namelessrom.setupwizard.R;
 
@@ -77,10 +86,25 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
 
     private volatile boolean mIsFinishing = false;
 
-    private final ArrayList<Runnable> mFinishRunnables = new ArrayList<Runnable>();
+    private final FinishPipeline mFinishPipeline = new FinishPipeline();
+
+    private boolean mPreloadScheduled = false;
+
+    private final MessageQueue.IdleHandler mPreloadIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            mPreloadScheduled = false;
+            if (!isFinishing() && !isDestroyed() && !mSetupData.isFinished()) {
+                mSetupData.preloadNextPage(getFragmentManager(), getLayoutInflater(),
+                        (ViewGroup) findViewById(R.id.content));
+            }
+            return false;
+        }
+    };
 
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTracer.phase("activity_attach");
         final View decorView = getWindow().getDecorView();
         decorView.setSystemUiVisibility(UI_FLAGS);
         decorView.setOnSystemUiVisibilityChangeListener(
@@ -94,7 +118,9 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
                     }
                 });
         setContentView(R.layout.setup_main);
+        StartupTracer.phase("activity_inflate");
         mRootView = findViewById(R.id.root);
+        StartupTracer.traceFirstFrame(mRootView);
         mRootView.setSystemUiVisibility(UI_FLAGS);
         mReveal = (ImageView)mRootView.findViewById(R.id.reveal);
         mButtonBar = findViewById(R.id.button_bar);
@@ -115,6 +141,9 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
             @Override
             public void onClick(View view) {
                 enableButtonBar(false);
+                if (TransitionProfiler.isEnabled()) {
+                    TransitionProfiler.get().onNavigationStarted();
+                }
                 mSetupData.onNextPage();
             }
         });
@@ -122,10 +151,15 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
             @Override
             public void onClick(View view) {
                 enableButtonBar(false);
+                if (TransitionProfiler.isEnabled()) {
+                    TransitionProfiler.get().onNavigationStarted();
+                }
                 mSetupData.onPreviousPage();
             }
         });
         if (savedInstanceState == null) {
+            // Otherwise only started from onResume(), too late for the first page
+            mSetupData.loadUpcomingData();
             Page page = mSetupData.getCurrentPage();
             page.doLoadAction(getFragmentManager(), Page.ACTION_NEXT);
         }
@@ -143,6 +177,7 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
             }
         });
         registerReceiver(mSetupData, mSetupData.getIntentFilter());
+        StartupTracer.phase("activity_create");
     }
 
     @Override
@@ -162,6 +197,7 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
             onPageTreeChanged();
             enableButtonBar(true);
         }
+        StartupTracer.phase("activity_resume");
     }
 
     @Override
@@ -173,7 +209,12 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        Looper.myQueue().removeIdleHandler(mPreloadIdleHandler);
         mSetupData.onDestroy();
+        if (isFinishing() || !isChangingConfigurations()) {
+            // Only retained for the activity recreated after a configuration change
+            mSetupData.release();
+        }
         mSetupData.unregisterListener(this);
         unregisterReceiver(mSetupData);
     }
@@ -202,6 +243,9 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
         if (SetupWizardApp.DEBUG) Log.d(TAG, String.format("onNextPage: %s", page.getKey()));
         if (!isFinishing()) {
             page.doLoadAction(getFragmentManager(), Page.ACTION_NEXT);
+            if (TransitionProfiler.isEnabled()) {
+                TransitionProfiler.get().onLoadActionDone();
+            }
         }
     }
 
@@ -211,18 +255,37 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
         if (SetupWizardApp.DEBUG) Log.d(TAG, String.format("onPreviousPage: %s", page.getKey()));
         if (!isFinishing()) {
             page.doLoadAction(getFragmentManager(), Page.ACTION_PREVIOUS);
+            if (TransitionProfiler.isEnabled()) {
+                TransitionProfiler.get().onLoadActionDone();
+            }
         }
     }
 
     @Override
     public void onPageLoaded(Page page) {
         updateButtonBar();
-        enableButtonBar(true);
+        // Stays disabled while a loading fragment stands in for the page
+        enableButtonBar(page.isDataReady());
+        schedulePreload();
+    }
+
+    private void schedulePreload() {
+        if (!mPreloadScheduled) {
+            mPreloadScheduled = true;
+            Looper.myQueue().addIdleHandler(mPreloadIdleHandler);
+        }
     }
 
     @Override
     public void onPageTreeChanged() {
         updateButtonBar();
+        // The next visible page may have changed
+        schedulePreload();
+    }
+
+    @Override
+    public void onPageHiddenChanged(Page page) {
+        updateButtonBar();
     }
 
     private void enableButtonBar(boolean enabled) {
@@ -282,8 +345,8 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
     }
 
     @Override
-    public void addFinishRunnable(Runnable runnable) {
-        mFinishRunnables.add(runnable);
+    public void addFinishTask(FinishPipeline.Task task) {
+        mFinishPipeline.add(task);
     }
 
     @Override
@@ -334,6 +397,7 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
                     new Intent(SetupWizardApp.ACTION_FINISHED),
                     UserHandle.getCallingUserHandle());
             mIsFinishing = true;
+            mSetupData.exportPageFlow();
             setupRevealImage();
         }
     }
@@ -352,24 +416,32 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
 
         final Point p = new Point();
         getWindowManager().getDefaultDisplay().getRealSize(p);
-        final WallpaperManager wallpaperManager =
-                WallpaperManager.getInstance(SetupWizardActivity.this);
-        wallpaperManager.forgetLoadedWallpaper();
-        final Bitmap wallpaper = wallpaperManager.getBitmap();
-        Bitmap cropped = null;
-        if (wallpaper != null) {
-            cropped = Bitmap.createBitmap(wallpaper, 0,
-                    0, Math.min(p.x, wallpaper.getWidth()),
-                    Math.min(p.y, wallpaper.getHeight()));
-        }
-        if (cropped != null) {
-            mReveal.setScaleType(ImageView.ScaleType.CENTER_CROP);
-            mReveal.setImageBitmap(cropped);
-        } else {
-            mReveal.setBackground(wallpaperManager
-                    .getBuiltInDrawable(p.x, p.y, false, 0, 0));
+        final RevealWallpaper revealWallpaper = getRevealWallpaper();
+        if (revealWallpaper == null) {
+            animateOut();
+            return;
         }
-        animateOut();
+        // Usually decoded while the finish page was shown
+        revealWallpaper.get(p, new RevealWallpaper.Callback() {
+            @Override
+            public void onWallpaperReady(Bitmap wallpaper, Drawable builtIn) {
+                if (isDestroyed()) {
+                    return;
+                }
+                if (wallpaper != null) {
+                    mReveal.setScaleType(ImageView.ScaleType.CENTER_CROP);
+                    mReveal.setImageBitmap(wallpaper);
+                } else {
+                    mReveal.setBackground(builtIn);
+                }
+                animateOut();
+            }
+        });
+    }
+
+    private RevealWallpaper getRevealWallpaper() {
+        final FinishPage finishPage = (FinishPage) mSetupData.getPage(FinishPage.TAG);
+        return finishPage != null ? finishPage.getRevealWallpaper() : null;
     }
 
     private void animateOut() {
@@ -405,31 +477,80 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
     }
 
     private void finalizeSetup() {
-        mFinishRunnables.add(new Runnable() {
+        final SettingsBatch settings = SetupWizardUtils.getSettingsBatch(this);
+        settings.putInt(SettingsBatch.NAMESPACE_GLOBAL, Settings.Global.DEVICE_PROVISIONED, 1);
+        settings.putInt(SettingsBatch.NAMESPACE_SECURE, Settings.Secure.USER_SETUP_COMPLETE, 1);
+        // Everything the pages wrote while finishing goes out in one provider call
+        final FinishPipeline.Task commitSettings = mFinishPipeline.add(new FinishPipeline.Task(
+                "commit_settings", FinishPipeline.AFFINITY_BACKGROUND, new Runnable() {
+            @Override
+            public void run() {
+                settings.commit();
+                if (SetupWizardApp.DEBUG) Log.d(TAG, settings.dumpStats());
+            }
+        }));
+        mFinishPipeline.add(new FinishPipeline.Task("accessibility", FinishPipeline.AFFINITY_UI,
+                new Runnable() {
             @Override
             public void run() {
-                Settings.Global.putInt(getContentResolver(), Settings.Global.DEVICE_PROVISIONED, 1);
-                Settings.Secure.putInt(getContentResolver(),
-                        Settings.Secure.USER_SETUP_COMPLETE, 1);
                 if (mEnableAccessibilityController != null) {
                     mEnableAccessibilityController.onDestroy();
                 }
+            }
+        }));
+        mFinishPipeline.add(new FinishPipeline.Task("theme_client", FinishPipeline.AFFINITY_UI,
+                new Runnable() {
+            @Override
+            public void run() {
                 final ThemeManager tm =
                         (ThemeManager) SetupWizardActivity.this.getSystemService(THEME_SERVICE);
                 tm.removeClient(SetupWizardActivity.this);
+            }
+        }));
+        final FinishPipeline.Task disableGms = mFinishPipeline.add(new FinishPipeline.Task(
+                "disable_gms_wizard", FinishPipeline.AFFINITY_BACKGROUND, new Runnable() {
+            @Override
+            public void run() {
                 SetupWizardUtils.disableGMSSetupWizard(SetupWizardActivity.this);
+            }
+        }));
+        // Home must see the device provisioned, and not the GMS setup wizard
+        mFinishPipeline.add(new FinishPipeline.Task("launch_home", FinishPipeline.AFFINITY_UI,
+                new Runnable() {
+            @Override
+            public void run() {
                 Intent intent = new Intent(Intent.ACTION_MAIN);
                 intent.addCategory(Intent.CATEGORY_HOME);
                 startActivity(intent);
+            }
+        }).dependsOn(commitSettings, disableGms));
+        mFinishPipeline.add(new FinishPipeline.Task("forget_wallpaper",
+                FinishPipeline.AFFINITY_BACKGROUND, new Runnable() {
+            @Override
+            public void run() {
                 final WallpaperManager wallpaperManager =
                         WallpaperManager.getInstance(SetupWizardActivity.this);
                 wallpaperManager.forgetLoadedWallpaper();
             }
+        }));
+        mFinishPipeline.start(new Runnable() {
+            @Override
+            public void run() {
+                if (SetupWizardApp.DEBUG) {
+                    Log.d(TAG, TelephonySnapshot.dumpStats());
+                    Log.d(TAG, ((SetupWizardApp) getApplication()).getCaptivePortalProbe()
+                            .dumpStats());
+                    Log.d(TAG, SetupWizardUtils.getRadioStateTracker(SetupWizardActivity.this)
+                            .dumpStats());
+                }
+                final RevealWallpaper revealWallpaper = getRevealWallpaper();
+                if (revealWallpaper != null) {
+                    revealWallpaper.release();
+                }
+                SetupWizardUtils.getRadioStateTracker(SetupWizardActivity.this).stop();
+                finish();
+                SetupWizardUtils.disableSetupWizard(SetupWizardActivity.this);
+            }
         });
-        for (Runnable runnable : mFinishRunnables) {
-            runnable.run();
-        }
-        finish();
-        SetupWizardUtils.disableSetupWizard(SetupWizardActivity.this);
     }
 }
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Checks whether the current network sits behind a captive portal by racing HTTP requests to
+ * several generate_204 endpoints. The first conclusive answer decides, the others are
+ * cancelled. An endpoint answering 204 means open internet; a redirect, or a 200 with a body,
+ * means a portal intercepted the request. Error statuses count as no answer, they come from
+ * the endpoint or a broken network rather than from a portal. If no endpoint answers
+ * conclusively, the network is assumed not to be a portal, like the single endpoint check
+ * before.
+ * <p/>
+ * Verdicts are cached per network for a short while, so bouncing between the Wi-Fi picker and
+ * the portal login does not probe again, and probes of a network already being probed share
+ * the running race. The winning connection is drained and closed rather than disconnected, so
+ * the HTTP stack can keep the socket alive for the next probe.
+ * <p/>
+ * The round trip of every answered request goes into a {@link LatencyHistogram}, which a
+ * {@link Store} can carry across setup runs. A request that timed out goes in at the timeout
+ * it was given, as a lower bound of its round trip. Connect and read timeouts follow a high
+ * percentile of it: short on networks known to answer quickly, so a dead network does not
+ * keep the user waiting, and longer where answers have been slow or timed out, so a slow
+ * portal is not mistaken for no answer more than once.
+ * <p/>
+ * Only depends on the JDK, so it can be exercised on a plain JVM against a local HTTP stub.
+ * All methods are thread safe; callbacks run on a thread of the given executor.
+ */
+public final class CaptivePortalProbe {
+
+    public interface Callback {
+        void onResult(boolean isCaptivePortal);
+    }
+
+    public interface Store {
+        /**
+         * Persists the latency histogram, called on a thread of the executor after each probe.
+         */
+        void save(LatencyHistogram histogram);
+    }
+
+    public static final int DEFAULT_TIMEOUT_MS = 10 * 1000;
+    public static final int MIN_TIMEOUT_MS = 3 * 1000;
+    public static final int MAX_TIMEOUT_MS = DEFAULT_TIMEOUT_MS;
+
+    // Below this many samples the percentile says little, keep the default
+    private static final int MIN_SAMPLES = 8;
+    private static final double TIMEOUT_PERCENTILE = 0.99;
+    private static final int TIMEOUT_HEADROOM = 3;
+
+    private static final class Verdict {
+        final boolean isCaptivePortal;
+        final long expiresAtMs;
+
+        Verdict(boolean isCaptivePortal, long expiresAtMs) {
+            this.isCaptivePortal = isCaptivePortal;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    /**
+     * One race between the endpoints, for one network.
+     */
+    private final class Race {
+        final String mNetworkKey;
+        final ArrayList<Callback> mCallbacks = new ArrayList<>();
+        final ArrayList<HttpURLConnection> mConnections = new ArrayList<>();
+        final int mTimeoutMs;
+        int mPending;
+        boolean mDecided = false;
+
+        Race(String networkKey, int timeoutMs) {
+            mNetworkKey = networkKey;
+            mTimeoutMs = timeoutMs;
+            mPending = mEndpoints.size();
+        }
+
+        void start() {
+            for (final URL endpoint : mEndpoints) {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        attempt(Race.this, endpoint);
+                    }
+                });
+            }
+        }
+    }
+
+    private static final int RESULT_NO_ANSWER = 0;
+    private static final int RESULT_OPEN = 1;
+    private static final int RESULT_PORTAL = 2;
+
+    private final List<URL> mEndpoints;
+    private final Executor mExecutor;
+    private final long mTtlMs;
+    private final LatencyHistogram mLatencies;
+    private final Store mStore;
+
+    private final HashMap<String, Verdict> mVerdicts = new HashMap<>();
+    private final HashMap<String, Race> mRaces = new HashMap<>();
+
+    private int mProbes = 0;
+    private int mCacheHits = 0;
+    private int mTimeouts = 0;
+
+    /**
+     * @param endpoints generate_204 URLs to race, in order of preference
+     * @param executor Runs one blocking request per endpoint, should allow them to run in
+     *                 parallel
+     * @param ttlMs How long a verdict is reused for the same network
+     * @param latencies Round trips observed so far, updated by the probe
+     * @param store Where to persist the round trips, or null
+     */
+    public CaptivePortalProbe(List<URL> endpoints, Executor executor, long ttlMs,
+            LatencyHistogram latencies, Store store) {
+        mEndpoints = new ArrayList<>(endpoints);
+        mExecutor = executor;
+        mTtlMs = ttlMs;
+        mLatencies = latencies;
+        mStore = store;
+    }
+
+    /**
+     * Probes the network identified by the given key, e.g. its SSID and BSSID, unless a fresh
+     * verdict for it is cached.
+     */
+    public void probe(String networkKey, final Callback callback) {
+        final Race race;
+        synchronized (this) {
+            final Verdict verdict = mVerdicts.get(networkKey);
+            if (verdict != null && verdict.expiresAtMs > now()) {
+                mCacheHits++;
+                race = null;
+            } else {
+                mVerdicts.remove(networkKey);
+                final Race running = mRaces.get(networkKey);
+                if (running != null) {
+                    running.mCallbacks.add(callback);
+                    return;
+                }
+                if (mEndpoints.isEmpty()) {
+                    race = null;
+                } else {
+                    race = new Race(networkKey, getTimeoutMs());
+                    race.mCallbacks.add(callback);
+                    mRaces.put(networkKey, race);
+                    mProbes++;
+                }
+            }
+            if (race == null) {
+                final boolean isCaptivePortal = verdict != null && verdict.isCaptivePortal;
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResult(isCaptivePortal);
+                    }
+                });
+                return;
+            }
+        }
+        race.start();
+    }
+
+    /**
+     * Forgets the verdict for the given network, e.g. after the user went through the portal
+     * login.
+     */
+    public synchronized void invalidate(String networkKey) {
+        mVerdicts.remove(networkKey);
+    }
+
+    /**
+     * @return The connect and read timeout the next probe will use
+     */
+    public synchronized int getTimeoutMs() {
+        if (mLatencies.getCount() < MIN_SAMPLES) {
+            return DEFAULT_TIMEOUT_MS;
+        }
+        final long timeout = mLatencies.getPercentile(TIMEOUT_PERCENTILE) * TIMEOUT_HEADROOM;
+        return (int) Math.max(MIN_TIMEOUT_MS, Math.min(timeout, MAX_TIMEOUT_MS));
+    }
+
+    public synchronized String dumpStats() {
+        return String.format("captive portal probe: probes=%d cacheHits=%d cached=%d "
+                        + "timeouts=%d timeout=%dms latency: %s", mProbes, mCacheHits,
+                mVerdicts.size(), mTimeouts, getTimeoutMs(), mLatencies);
+    }
+
+    private void attempt(Race race, URL endpoint) {
+        HttpURLConnection connection = null;
+        int result = RESULT_NO_ANSWER;
+        try {
+            synchronized (this) {
+                if (!race.mDecided) {
+                    connection = (HttpURLConnection) endpoint.openConnection();
+                    race.mConnections.add(connection);
+                }
+            }
+            if (connection != null) {
+                connection.setInstanceFollowRedirects(false);
+                connection.setConnectTimeout(race.mTimeoutMs);
+                connection.setReadTimeout(race.mTimeoutMs);
+                connection.setUseCaches(false);
+                final long start = now();
+                final int responseCode = connection.getResponseCode();
+                synchronized (this) {
+                    mLatencies.record(now() - start);
+                }
+                result = classify(connection, responseCode);
+            }
+        } catch (SocketTimeoutException e) {
+            // The answer would have taken at least this long; without it the learnt timeout
+            // could only ever shrink
+            synchronized (this) {
+                mTimeouts++;
+                mLatencies.record(race.mTimeoutMs);
+            }
+        } catch (IOException e) {
+            // Unreachable endpoint, or cancelled because another one answered first
+        }
+        onAttemptDone(race, connection, result);
+        if (result != RESULT_NO_ANSWER) {
+            // After the verdict went out, a slow portal page must not delay it
+            drain(connection);
+        } else if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+    private static int classify(HttpURLConnection connection, int responseCode)
+            throws IOException {
+        if (responseCode == 204) {
+            return RESULT_OPEN;
+        }
+        if (responseCode >= 300 && responseCode < 400) {
+            return RESULT_PORTAL;
+        }
+        if (responseCode == 408 || responseCode == 504) {
+            // If we timeout here, we'll try and go through captive portal login
+            return RESULT_PORTAL;
+        }
+        if (responseCode == 200 && hasBody(connection)) {
+            return RESULT_PORTAL;
+        }
+        return RESULT_NO_ANSWER;
+    }
+
+    private static boolean hasBody(HttpURLConnection connection) throws IOException {
+        final int length = connection.getContentLength();
+        if (length >= 0) {
+            return length > 0;
+        }
+        // Chunked, peek at the first byte; drain() reads the rest from the same stream
+        return connection.getInputStream().read() != -1;
+    }
+
+    private void onAttemptDone(Race race, HttpURLConnection connection, int result) {
+        final ArrayList<HttpURLConnection> losers = new ArrayList<>();
+        final Callback[] callbacks;
+        final LatencyHistogram latencies;
+        final boolean isCaptivePortal = result == RESULT_PORTAL;
+        synchronized (this) {
+            if (connection != null) {
+                race.mConnections.remove(connection);
+            }
+            race.mPending--;
+            if (race.mDecided || (result == RESULT_NO_ANSWER && race.mPending > 0)) {
+                return;
+            }
+            race.mDecided = true;
+            losers.addAll(race.mConnections);
+            race.mConnections.clear();
+            mRaces.remove(race.mNetworkKey);
+            if (result != RESULT_NO_ANSWER) {
+                mVerdicts.put(race.mNetworkKey, new Verdict(isCaptivePortal, now() + mTtlMs));
+            }
+            callbacks = race.mCallbacks.toArray(new Callback[race.mCallbacks.size()]);
+            latencies = mStore != null ? mLatencies.copy() : null;
+        }
+        for (HttpURLConnection loser : losers) {
+            // Unblocks the request, the attempt then finishes with an IOException
+            loser.disconnect();
+        }
+        for (Callback callback : callbacks) {
+            callback.onResult(isCaptivePortal);
+        }
+        if (latencies != null) {
+            mStore.save(latencies);
+        }
+    }
+
+    private static void drain(HttpURLConnection connection) {
+        InputStream in = null;
+        try {
+            in = connection.getInputStream();
+            final byte[] buffer = new byte[512];
+            while (in.read(buffer) != -1) {
+                // A portal page is small, reading it allows the connection to be reused
+            }
+        } catch (IOException e) {
+            // Error responses have no input stream, nothing to reuse
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
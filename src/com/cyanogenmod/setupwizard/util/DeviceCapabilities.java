@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.util;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.AsyncTask;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.GooglePlayServicesUtil;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Device features that cannot change during a setup run. Every probe is started in parallel
+ * when the application is created; a caller asking before a probe finished runs it inline.
+ */
+public final class DeviceCapabilities {
+
+    private static final String TAG = DeviceCapabilities.class.getSimpleName();
+
+    private final FutureTask<Boolean> mHasTelephony;
+    private final FutureTask<Boolean> mHasLeanback;
+    private final FutureTask<Boolean> mIsMultiSim;
+    private final FutureTask<Boolean> mHasGms;
+
+    public DeviceCapabilities(final Context context) {
+        mHasTelephony = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return context.getPackageManager()
+                        .hasSystemFeature(PackageManager.FEATURE_TELEPHONY);
+            }
+        });
+        mHasLeanback = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return context.getPackageManager()
+                        .hasSystemFeature(PackageManager.FEATURE_LEANBACK);
+            }
+        });
+        mIsMultiSim = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                TelephonyManager tm =
+                        (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+                return tm.isMultiSimEnabled();
+            }
+        });
+        mHasGms = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return GooglePlayServicesUtil.isGooglePlayServicesAvailable(context) !=
+                        ConnectionResult.SERVICE_MISSING;
+            }
+        });
+    }
+
+    /**
+     * Starts all probes concurrently.
+     */
+    public void probe() {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(mHasTelephony);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(mHasLeanback);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(mIsMultiSim);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(mHasGms);
+    }
+
+    public boolean hasTelephony() {
+        return get(mHasTelephony);
+    }
+
+    public boolean hasLeanback() {
+        return get(mHasLeanback);
+    }
+
+    public boolean isMultiSimDevice() {
+        return get(mIsMultiSim);
+    }
+
+    public boolean hasGMS() {
+        return get(mHasGms);
+    }
+
+    private static boolean get(FutureTask<Boolean> task) {
+        // No-op if the probe already ran or is running elsewhere, in which case get() waits
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Unable to probe device capability", e.getCause());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.namelessrom.setupwizard.SetupWizardApp;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the work needed to finish setup. Each task declares the tasks it depends on and whether
+ * it must run on the UI thread; tasks whose dependencies are done run concurrently, background
+ * ones on a small bounded pool.
+ * <p/>
+ * Tasks are added and the pipeline is started on the UI thread. A failing task is logged and
+ * counts as done, setup has to finish regardless.
+ */
+public final class FinishPipeline {
+
+    private static final String TAG = FinishPipeline.class.getSimpleName();
+
+    private static final int POOL_SIZE = 3;
+
+    public static final int AFFINITY_UI = 0;
+    public static final int AFFINITY_BACKGROUND = 1;
+
+    public static final class Task {
+        private final String mName;
+        private final int mAffinity;
+        private final Runnable mRunnable;
+        private final ArrayList<Task> mDependencies = new ArrayList<>();
+
+        // Guarded by the pipeline
+        private final ArrayList<Task> mDependents = new ArrayList<>();
+        private int mPendingDependencies;
+        private boolean mAdded;
+
+        public Task(String name, int affinity, Runnable runnable) {
+            mName = name;
+            mAffinity = affinity;
+            mRunnable = runnable;
+        }
+
+        /**
+         * Makes this task wait for the given ones. Dependencies that are never added to the
+         * pipeline are ignored.
+         */
+        public Task dependsOn(Task... dependencies) {
+            for (Task dependency : dependencies) {
+                if (dependency != null) {
+                    mDependencies.add(dependency);
+                }
+            }
+            return this;
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Task> mTasks = new ArrayList<>();
+    private ExecutorService mExecutor;
+    private Runnable mOnComplete;
+    private int mRemaining;
+    private long mStart;
+    private boolean mStarted = false;
+
+    public Task add(Task task) {
+        if (mStarted) {
+            throw new IllegalStateException("Pipeline already started, cannot add " + task.mName);
+        }
+        task.mAdded = true;
+        mTasks.add(task);
+        return task;
+    }
+
+    /**
+     * Runs all tasks, then calls onComplete on the UI thread.
+     */
+    public void start(Runnable onComplete) {
+        mStarted = true;
+        mOnComplete = onComplete;
+        mStart = SystemClock.elapsedRealtime();
+        final ArrayList<Task> ready = new ArrayList<>();
+        synchronized (this) {
+            mRemaining = mTasks.size();
+            for (Task task : mTasks) {
+                task.mPendingDependencies = 0;
+                for (Task dependency : task.mDependencies) {
+                    if (dependency.mAdded) {
+                        dependency.mDependents.add(task);
+                        task.mPendingDependencies++;
+                    } else {
+                        Log.w(TAG, task.mName + " depends on " + dependency.mName
+                                + ", which was never added");
+                    }
+                }
+                if (task.mPendingDependencies == 0) {
+                    ready.add(task);
+                }
+            }
+        }
+        if (mTasks.isEmpty()) {
+            mOnComplete.run();
+            return;
+        }
+        if (ready.isEmpty()) {
+            throw new IllegalStateException("Finish tasks depend on each other");
+        }
+        mExecutor = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+            private int mCount = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                return new Thread(r, TAG + " #" + (++mCount));
+            }
+        });
+        dispatch(ready);
+    }
+
+    private void dispatch(ArrayList<Task> tasks) {
+        for (final Task task : tasks) {
+            final Runnable runnable = new Runnable() {
+                @Override
+                public void run() {
+                    execute(task);
+                }
+            };
+            if (task.mAffinity == AFFINITY_UI) {
+                mHandler.post(runnable);
+            } else {
+                mExecutor.execute(runnable);
+            }
+        }
+    }
+
+    private void execute(Task task) {
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            task.mRunnable.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Finish task " + task.mName + " failed", e);
+        }
+        if (SetupWizardApp.DEBUG) {
+            Log.d(TAG, String.format("%s took %d ms, done at +%d ms", task.mName,
+                    SystemClock.elapsedRealtime() - start, SystemClock.elapsedRealtime() - mStart));
+        }
+        final ArrayList<Task> ready = new ArrayList<>();
+        final boolean complete;
+        synchronized (this) {
+            for (Task dependent : task.mDependents) {
+                if (--dependent.mPendingDependencies == 0) {
+                    ready.add(dependent);
+                }
+            }
+            complete = --mRemaining == 0;
+        }
+        dispatch(ready);
+        if (complete) {
+            mExecutor.shutdown();
+            mHandler.post(mOnComplete);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Histogram of latencies in milliseconds with log-linear buckets, like an HDR histogram with
+ * one significant digit: every power of two is split into 8 buckets, so any recorded value is
+ * off by at most 12.5%, from 1ms up to {@link #MAX_VALUE_MS}. Larger values are clamped.
+ * <p/>
+ * Once more than {@link #MAX_SAMPLES} values are recorded all counts are halved, so recent
+ * values keep their weight when the histogram is carried across runs. Not thread safe.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 17;
+
+    public static final long MAX_VALUE_MS = (1L << MAX_EXPONENT) - 1;
+    public static final int MAX_SAMPLES = 1024;
+
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final int[] mCounts = new int[BUCKETS];
+    private int mTotal = 0;
+
+    public void record(long valueMs) {
+        mCounts[getBucket(Math.max(0, Math.min(valueMs, MAX_VALUE_MS)))]++;
+        if (++mTotal > MAX_SAMPLES) {
+            mTotal = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                mCounts[i] /= 2;
+                mTotal += mCounts[i];
+            }
+        }
+    }
+
+    public int getCount() {
+        return mTotal;
+    }
+
+    /**
+     * @param fraction Between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return The upper bound of the bucket holding the given percentile, or -1 if empty
+     */
+    public long getPercentile(double fraction) {
+        if (mTotal == 0) {
+            return -1;
+        }
+        final long target = Math.max(1, (long) Math.ceil(fraction * mTotal));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= target) {
+                return getUpperBound(i);
+            }
+        }
+        return MAX_VALUE_MS;
+    }
+
+    public LatencyHistogram copy() {
+        final LatencyHistogram copy = new LatencyHistogram();
+        System.arraycopy(mCounts, 0, copy.mCounts, 0, BUCKETS);
+        copy.mTotal = mTotal;
+        return copy;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(BUCKETS);
+        for (int count : mCounts) {
+            out.writeInt(count);
+        }
+    }
+
+    /**
+     * Replaces the counts with the ones read from the stream.
+     */
+    public void readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != BUCKETS) {
+            throw new IOException("Bucket layout changed");
+        }
+        final int[] counts = new int[BUCKETS];
+        int total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = in.readInt();
+            if (counts[i] < 0) {
+                throw new IOException("Negative count");
+            }
+            total += counts[i];
+        }
+        System.arraycopy(counts, 0, mCounts, 0, BUCKETS);
+        mTotal = total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d p50=%dms p90=%dms p99=%dms max=%dms", mTotal,
+                getPercentile(0.5), getPercentile(0.9), getPercentile(0.99), getPercentile(1));
+    }
+
+    private static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    private static long getUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        final int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
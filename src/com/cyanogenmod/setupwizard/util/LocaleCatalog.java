@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.util;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.internal.app.LocalePicker;
+
+import org.namelessrom.setupwizard.SetupWizardApp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Selectable system locales and their display labels, as shown on the welcome page.
+ * <p/>
+ * Enumerating the asset locales and building their labels is slow, so the catalog is built on
+ * a background thread when the application starts and persisted in the cache directory, keyed
+ * by the build, the default locale and the system locale list.
+ */
+public final class LocaleCatalog {
+
+    private static final String TAG = LocaleCatalog.class.getSimpleName();
+
+    private static final String CACHE_FILE = "locales.bin";
+    private static final int CACHE_FORMAT_VERSION = 1;
+
+    private static FutureTask<LocaleCatalog> sLoadTask;
+
+    private final Locale[] mLocales;
+    private final String[] mLabels;
+    private final String[][] mSearchAliases;
+
+    private LocaleCatalog(Locale[] locales, String[] labels) {
+        mLocales = locales;
+        mLabels = labels;
+        // English name and ISO codes, so typing "german" or "de" finds "Deutsch"
+        mSearchAliases = new String[locales.length][];
+        for (int i = 0; i < locales.length; i++) {
+            mSearchAliases[i] = new String[] {
+                    locales[i].getDisplayName(Locale.ENGLISH),
+                    locales[i].getDisplayLanguage(Locale.ENGLISH),
+                    locales[i].toLanguageTag(),
+            };
+        }
+    }
+
+    public int size() {
+        return mLocales.length;
+    }
+
+    public Locale getLocale(int position) {
+        return mLocales[position];
+    }
+
+    /**
+     * @return The labels, ready to be handed to the locale picker. Must not be modified.
+     */
+    public String[] getLabels() {
+        return mLabels;
+    }
+
+    /**
+     * @return Additional search terms for each label
+     */
+    public String[][] getSearchAliases() {
+        return mSearchAliases;
+    }
+
+    /**
+     * @return The position of the given locale, or -1 if it is not listed
+     */
+    public int indexOf(Locale locale) {
+        for (int i = 0; i < mLocales.length; i++) {
+            if (mLocales[i].equals(locale)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Starts loading the catalog in the background.
+     */
+    public static void preload(Context context) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(getLoadTask(context));
+    }
+
+    /**
+     * Returns the catalog, loading it on the calling thread if the preload has not started yet.
+     */
+    public static LocaleCatalog get(Context context) {
+        final FutureTask<LocaleCatalog> task = getLoadTask(context);
+        // No-op if the preload already ran or is running, in which case get() waits for it
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return load(context.getApplicationContext());
+        } catch (ExecutionException e) {
+            // Most likely an unreadable cache, build the catalog from the assets instead
+            Log.e(TAG, "Unable to load locales, building them again", e.getCause());
+            return build(context.getApplicationContext());
+        }
+    }
+
+    /**
+     * @return Whether the catalog is loaded, so {@link #get(Context)} would not block
+     */
+    public static synchronized boolean isLoaded() {
+        return sLoadTask != null && sLoadTask.isDone();
+    }
+
+    private static synchronized FutureTask<LocaleCatalog> getLoadTask(Context context) {
+        if (sLoadTask == null) {
+            final Context appContext = context.getApplicationContext();
+            sLoadTask = new FutureTask<>(new Callable<LocaleCatalog>() {
+                @Override
+                public LocaleCatalog call() {
+                    return load(appContext);
+                }
+            });
+        }
+        return sLoadTask;
+    }
+
+    private static LocaleCatalog load(Context context) {
+        final long start = SystemClock.elapsedRealtime();
+        final String fingerprint = getFingerprint();
+        final AtomicFile file = new AtomicFile(new File(context.getCacheDir(), CACHE_FILE));
+        LocaleCatalog catalog = readFromDisk(file, fingerprint);
+        final boolean fromDisk = catalog != null;
+        if (catalog == null) {
+            catalog = build(context);
+            writeToDisk(file, fingerprint, catalog);
+        }
+        if (SetupWizardApp.DEBUG) {
+            Log.d(TAG, String.format("loaded %d locales from %s in %d ms", catalog.size(),
+                    fromDisk ? "disk" : "assets", SystemClock.elapsedRealtime() - start));
+        }
+        return catalog;
+    }
+
+    private static String getFingerprint() {
+        final String[] assetLocales = Resources.getSystem().getAssets().getLocales();
+        // Labels can be localized, and an OTA can change them without touching the list
+        return Build.FINGERPRINT + '/' + Locale.getDefault().toString() + '/'
+                + assetLocales.length + '/' + Arrays.hashCode(assetLocales);
+    }
+
+    private static LocaleCatalog build(Context context) {
+        final List<LocalePicker.LocaleInfo> infos =
+                LocalePicker.getAllAssetLocales(context, false);
+        final int count = infos.size();
+        final Locale[] locales = new Locale[count];
+        final String[] labels = new String[count];
+        for (int i = 0; i < count; i++) {
+            final LocalePicker.LocaleInfo info = infos.get(i);
+            locales[i] = info.getLocale();
+            labels[i] = info.getLabel();
+        }
+        return new LocaleCatalog(locales, labels);
+    }
+
+    private static LocaleCatalog readFromDisk(AtomicFile file, String fingerprint) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(file.openRead());
+            if (in.readInt() != CACHE_FORMAT_VERSION || !fingerprint.equals(in.readUTF())) {
+                return null;
+            }
+            final int count = in.readInt();
+            final Locale[] locales = new Locale[count];
+            final String[] labels = new String[count];
+            for (int i = 0; i < count; i++) {
+                locales[i] = Locale.forLanguageTag(in.readUTF());
+                labels[i] = in.readUTF();
+            }
+            return new LocaleCatalog(locales, labels);
+        } catch (IOException e) {
+            // Missing or truncated cache, rebuild it
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static void writeToDisk(AtomicFile file, String fingerprint, LocaleCatalog catalog) {
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(CACHE_FORMAT_VERSION);
+            out.writeUTF(fingerprint);
+            out.writeInt(catalog.size());
+            for (int i = 0; i < catalog.size(); i++) {
+                out.writeUTF(catalog.mLocales[i].toLanguageTag());
+                out.writeUTF(catalog.mLabels[i]);
+            }
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write locale cache", e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.util;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Keeps the captive portal probe latencies in the files directory, so the timeouts learnt in
+ * one setup run carry over to the next.
+ */
+public final class ProbeLatencyStore implements CaptivePortalProbe.Store {
+
+    private static final String TAG = ProbeLatencyStore.class.getSimpleName();
+
+    private static final String FILE_NAME = "probe_latency";
+    private static final int FORMAT_VERSION = 1;
+
+    private final AtomicFile mFile;
+
+    public ProbeLatencyStore(Context context) {
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * @return The stored latencies, empty if none were stored yet
+     */
+    public LatencyHistogram load() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(mFile.openRead());
+            if (in.readInt() == FORMAT_VERSION) {
+                histogram.readFrom(in);
+            }
+        } catch (IOException e) {
+            // Missing or truncated, start over
+            return new LatencyHistogram();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return histogram;
+    }
+
+    @Override
+    public synchronized void save(LatencyHistogram histogram) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(FORMAT_VERSION);
+            histogram.writeTo(out);
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write probe latencies", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+}
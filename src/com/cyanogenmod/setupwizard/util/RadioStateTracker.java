@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.util;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.telephony.PhoneStateListener;
+import android.telephony.ServiceState;
+import android.telephony.SignalStrength;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.view.Choreographer;
+
+import org.namelessrom.setupwizard.SetupWizardApp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks whether the radio is up, for the whole process. One service state listener is kept
+ * per active subscription from application start on, so pages shown once the radio is up
+ * render right away instead of each waiting on a listener of its own.
+ * <p/>
+ * The radio counts as ready once any subscription reports a service state other than
+ * {@link ServiceState#STATE_POWER_OFF}, or once the timeout passed since {@link #start(long)}
+ * without that happening, e.g. in airplane mode.
+ * <p/>
+ * Pages showing service state or signal bars subscribe with a {@link PhoneStateCallback}
+ * instead of registering listeners of their own. The same listener then also asks for signal
+ * strengths, for as long as a subscription has subscribers. Changes are collected and
+ * delivered at most once per frame, and only when the service state or the signal level
+ * actually changed. All methods must be called on the main thread.
+ */
+public final class RadioStateTracker {
+
+    private static final String TAG = RadioStateTracker.class.getSimpleName();
+
+    public interface Listener {
+        void onRadioReady();
+    }
+
+    public static final int CHANGED_SERVICE_STATE = 1;
+    public static final int CHANGED_SIGNAL_LEVEL = 1 << 1;
+
+    public interface PhoneStateCallback {
+        /**
+         * @param changed The CHANGED_ flags of what differs from the previous call, all known
+         *                fields on the first call
+         * @param serviceState The latest service state, or null if none was reported yet
+         * @param signalStrength The latest signal strength, or null if none was reported yet
+         */
+        void onPhoneStateChanged(int subId, int changed, ServiceState serviceState,
+                SignalStrength signalStrength);
+    }
+
+    /**
+     * What the subscribers of one subscription have last been told.
+     */
+    private static final class Delivered {
+        final ArrayList<PhoneStateCallback> callbacks = new ArrayList<>();
+        ServiceState serviceState;
+        int signalLevel = -1;
+    }
+
+    private final TelephonyManager mPhone;
+    private final SubscriptionManager mSubscriptionManager;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final SparseArray<PhoneStateListener> mPhoneStateListeners = new SparseArray<>();
+    private final SparseIntArray mListenEvents = new SparseIntArray();
+    private final SparseArray<ServiceState> mServiceStates = new SparseArray<>();
+    private final SparseArray<SignalStrength> mSignalStrengths = new SparseArray<>();
+    private final SparseArray<Delivered> mDelivered = new SparseArray<>();
+    private final ArrayList<Listener> mListeners = new ArrayList<>();
+
+    private boolean mFrameScheduled = false;
+    private int mCallbacksReceived = 0;
+    private int mDeliveries = 0;
+
+    private final Choreographer.FrameCallback mDeliverFrameCallback =
+            new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
+            deliverChanges();
+        }
+    };
+
+    private boolean mStarted = false;
+    private boolean mRadioReady = false;
+    private long mStartMs;
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (SetupWizardApp.DEBUG) Log.d(TAG, "radio not up, giving up waiting");
+            setRadioReady();
+        }
+    };
+
+    private final SubscriptionManager.OnSubscriptionsChangedListener mSubscriptionsListener =
+            new SubscriptionManager.OnSubscriptionsChangedListener() {
+        @Override
+        public void onSubscriptionsChanged() {
+            updateSubscriptions();
+        }
+    };
+
+    public RadioStateTracker(Context context) {
+        mPhone = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        mSubscriptionManager = SubscriptionManager.from(context);
+    }
+
+    /**
+     * Starts listening, giving up on the radio after the given time.
+     */
+    public void start(long timeoutMs) {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mStartMs = SystemClock.elapsedRealtime();
+        mSubscriptionManager.addOnSubscriptionsChangedListener(mSubscriptionsListener);
+        updateSubscriptions();
+        mHandler.postDelayed(mTimeoutRunnable, timeoutMs);
+    }
+
+    /**
+     * Stops listening, once setup no longer shows anything depending on the radio.
+     */
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mSubscriptionManager.removeOnSubscriptionsChangedListener(mSubscriptionsListener);
+        for (int i = 0; i < mPhoneStateListeners.size(); i++) {
+            mPhone.listen(mPhoneStateListeners.valueAt(i), PhoneStateListener.LISTEN_NONE);
+        }
+        mPhoneStateListeners.clear();
+        mListenEvents.clear();
+        mListeners.clear();
+        mDelivered.clear();
+        if (mFrameScheduled) {
+            Choreographer.getInstance().removeFrameCallback(mDeliverFrameCallback);
+            mFrameScheduled = false;
+        }
+    }
+
+    public boolean isRadioReady() {
+        return mRadioReady;
+    }
+
+    /**
+     * Calls the listener once the radio is ready, unless it already is. Listeners are dropped
+     * after being called.
+     */
+    public void addListener(Listener listener) {
+        if (!mRadioReady && !mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Calls back with the state of the given subscription right away, then whenever its
+     * service state or signal level changes.
+     */
+    public void subscribe(int subId, PhoneStateCallback callback) {
+        Delivered delivered = mDelivered.get(subId);
+        if (delivered == null) {
+            delivered = new Delivered();
+            mDelivered.put(subId, delivered);
+        }
+        if (delivered.callbacks.contains(callback)) {
+            return;
+        }
+        delivered.callbacks.add(callback);
+        updateListenEvents(subId);
+        final ServiceState serviceState = mServiceStates.get(subId);
+        final SignalStrength signalStrength = mSignalStrengths.get(subId);
+        if (delivered.callbacks.size() == 1) {
+            delivered.serviceState = serviceState;
+            delivered.signalLevel = signalStrength != null ? signalStrength.getLevel() : -1;
+        }
+        int changed = 0;
+        if (serviceState != null) {
+            changed |= CHANGED_SERVICE_STATE;
+        }
+        if (signalStrength != null) {
+            changed |= CHANGED_SIGNAL_LEVEL;
+        }
+        callback.onPhoneStateChanged(subId, changed, serviceState, signalStrength);
+    }
+
+    public void unsubscribe(PhoneStateCallback callback) {
+        for (int i = mDelivered.size() - 1; i >= 0; i--) {
+            final Delivered delivered = mDelivered.valueAt(i);
+            if (delivered.callbacks.remove(callback) && delivered.callbacks.isEmpty()) {
+                final int subId = mDelivered.keyAt(i);
+                mDelivered.removeAt(i);
+                updateListenEvents(subId);
+            }
+        }
+    }
+
+    public String dumpStats() {
+        return String.format("radio: ready=%b subscriptions=%d callbacks=%d deliveries=%d",
+                mRadioReady, mPhoneStateListeners.size(), mCallbacksReceived, mDeliveries);
+    }
+
+    private void updateSubscriptions() {
+        if (!mStarted) {
+            return;
+        }
+        final List<SubscriptionInfo> infos = mSubscriptionManager.getActiveSubscriptionInfoList();
+        final ArrayList<Integer> subIds = new ArrayList<>();
+        if (infos != null) {
+            for (SubscriptionInfo info : infos) {
+                subIds.add(info.getSubscriptionId());
+            }
+        }
+        if (subIds.isEmpty()) {
+            // No SIM yet, the default phone still reports whether its radio is on
+            subIds.add(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+        }
+        for (int i = mPhoneStateListeners.size() - 1; i >= 0; i--) {
+            final int subId = mPhoneStateListeners.keyAt(i);
+            if (!subIds.contains(subId)) {
+                mPhone.listen(mPhoneStateListeners.valueAt(i), PhoneStateListener.LISTEN_NONE);
+                mPhoneStateListeners.removeAt(i);
+                mListenEvents.delete(subId);
+                mServiceStates.remove(subId);
+                mSignalStrengths.remove(subId);
+            }
+        }
+        for (int subId : subIds) {
+            if (mPhoneStateListeners.get(subId) == null) {
+                mPhoneStateListeners.put(subId, createPhoneStateListener(subId));
+                updateListenEvents(subId);
+            }
+        }
+    }
+
+    /**
+     * Service state is always listened for, signal strengths only while someone shows them.
+     */
+    private void updateListenEvents(int subId) {
+        final PhoneStateListener listener = mPhoneStateListeners.get(subId);
+        if (listener == null) {
+            return;
+        }
+        int events = PhoneStateListener.LISTEN_SERVICE_STATE;
+        if (mDelivered.get(subId) != null) {
+            events |= PhoneStateListener.LISTEN_SIGNAL_STRENGTHS;
+        } else {
+            mSignalStrengths.remove(subId);
+        }
+        if (mListenEvents.get(subId) != events) {
+            mListenEvents.put(subId, events);
+            mPhone.listen(listener, events);
+        }
+    }
+
+    private PhoneStateListener createPhoneStateListener(final int subId) {
+        final PhoneStateListener listener;
+        if (subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+            listener = new PhoneStateListener() {
+                @Override
+                public void onServiceStateChanged(ServiceState state) {
+                    onServiceState(subId, state);
+                }
+
+                @Override
+                public void onSignalStrengthsChanged(SignalStrength signalStrength) {
+                    onSignalStrength(subId, signalStrength);
+                }
+            };
+        } else {
+            listener = new PhoneStateListener(subId) {
+                @Override
+                public void onServiceStateChanged(ServiceState state) {
+                    onServiceState(subId, state);
+                }
+
+                @Override
+                public void onSignalStrengthsChanged(SignalStrength signalStrength) {
+                    onSignalStrength(subId, signalStrength);
+                }
+            };
+        }
+        return listener;
+    }
+
+    private void onServiceState(int subId, ServiceState state) {
+        mCallbacksReceived++;
+        mServiceStates.put(subId, state);
+        scheduleDelivery(subId);
+        if (!mRadioReady && state.getState() != ServiceState.STATE_POWER_OFF) {
+            if (SetupWizardApp.DEBUG) {
+                Log.d(TAG, "radio up on sub " + subId + " after "
+                        + (SystemClock.elapsedRealtime() - mStartMs) + "ms");
+            }
+            setRadioReady();
+        }
+    }
+
+    private void onSignalStrength(int subId, SignalStrength signalStrength) {
+        mCallbacksReceived++;
+        mSignalStrengths.put(subId, signalStrength);
+        scheduleDelivery(subId);
+    }
+
+    private void scheduleDelivery(int subId) {
+        if (!mFrameScheduled && mDelivered.get(subId) != null) {
+            mFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mDeliverFrameCallback);
+        }
+    }
+
+    private void deliverChanges() {
+        for (int i = 0; i < mDelivered.size(); i++) {
+            final int subId = mDelivered.keyAt(i);
+            final Delivered delivered = mDelivered.valueAt(i);
+            final ServiceState serviceState = mServiceStates.get(subId);
+            final SignalStrength signalStrength = mSignalStrengths.get(subId);
+            final int signalLevel = signalStrength != null ? signalStrength.getLevel() : -1;
+            int changed = 0;
+            if (serviceState != null && !serviceState.equals(delivered.serviceState)) {
+                changed |= CHANGED_SERVICE_STATE;
+            }
+            if (signalLevel != delivered.signalLevel) {
+                changed |= CHANGED_SIGNAL_LEVEL;
+            }
+            if (changed == 0) {
+                continue;
+            }
+            delivered.serviceState = serviceState;
+            delivered.signalLevel = signalLevel;
+            mDeliveries++;
+            final PhoneStateCallback[] callbacks = delivered.callbacks.toArray(
+                    new PhoneStateCallback[delivered.callbacks.size()]);
+            for (PhoneStateCallback callback : callbacks) {
+                callback.onPhoneStateChanged(subId, changed, serviceState, signalStrength);
+            }
+        }
+    }
+
+    private void setRadioReady() {
+        if (mRadioReady) {
+            return;
+        }
+        mRadioReady = true;
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        final Listener[] listeners = mListeners.toArray(new Listener[mListeners.size()]);
+        mListeners.clear();
+        for (Listener listener : listeners) {
+            listener.onRadioReady();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.util;
+
+import android.app.IWallpaperManager;
+import android.app.WallpaperManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import org.namelessrom.setupwizard.SetupWizardApp;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * The wallpaper shown by the circular reveal when setup finishes, cropped to the screen.
+ * <p/>
+ * Only the top left screen sized region of the wallpaper is decoded, on a background thread,
+ * so a large wallpaper never gets decoded in full on the UI thread. The result is kept until
+ * the wallpaper changes, e.g. because the default theme got applied. All methods must be
+ * called on the main thread.
+ */
+public final class RevealWallpaper {
+
+    private static final String TAG = RevealWallpaper.class.getSimpleName();
+
+    public interface Callback {
+        /**
+         * @param wallpaper The cropped wallpaper, or null if none is set
+         * @param builtIn The system default wallpaper, used when wallpaper is null
+         */
+        void onWallpaperReady(Bitmap wallpaper, Drawable builtIn);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Callback> mCallbacks = new ArrayList<>();
+
+    private Point mSize;
+    private Bitmap mWallpaper;
+    private Drawable mBuiltIn;
+    private boolean mReady = false;
+    private boolean mLoading = false;
+    private int mGeneration = 0;
+    private boolean mReceiverRegistered = false;
+
+    private final BroadcastReceiver mWallpaperChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    public RevealWallpaper(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Starts decoding the wallpaper for a screen of the given size, unless already done.
+     */
+    public void prefetch(Point size) {
+        if (!mReceiverRegistered) {
+            mContext.registerReceiver(mWallpaperChangedReceiver,
+                    new IntentFilter(Intent.ACTION_WALLPAPER_CHANGED));
+            mReceiverRegistered = true;
+        }
+        if (mSize != null && !mSize.equals(size)) {
+            invalidate();
+        }
+        mSize = new Point(size);
+        if (mReady || mLoading) {
+            return;
+        }
+        mLoading = true;
+        final int generation = mGeneration;
+        final Point target = mSize;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long start = SystemClock.elapsedRealtime();
+                final Bitmap wallpaper = decode(target);
+                final Drawable builtIn = wallpaper == null ? WallpaperManager.getInstance(mContext)
+                        .getBuiltInDrawable(target.x, target.y, false, 0, 0) : null;
+                if (SetupWizardApp.DEBUG) {
+                    Log.d(TAG, String.format("decoded %s in %d ms", wallpaper != null
+                                    ? wallpaper.getWidth() + "x" + wallpaper.getHeight()
+                                    : "built in wallpaper", SystemClock.elapsedRealtime() - start));
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onDecoded(generation, wallpaper, builtIn);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Calls back once the wallpaper is decoded, right away if it already is.
+     */
+    public void get(Point size, Callback callback) {
+        prefetch(size);
+        if (mReady) {
+            callback.onWallpaperReady(mWallpaper, mBuiltIn);
+        } else {
+            mCallbacks.add(callback);
+        }
+    }
+
+    private void onDecoded(int generation, Bitmap wallpaper, Drawable builtIn) {
+        if (generation != mGeneration) {
+            // Wallpaper changed meanwhile, a newer decode is on its way
+            return;
+        }
+        mLoading = false;
+        mReady = true;
+        mWallpaper = wallpaper;
+        mBuiltIn = builtIn;
+        final Callback[] callbacks = mCallbacks.toArray(new Callback[mCallbacks.size()]);
+        mCallbacks.clear();
+        for (Callback callback : callbacks) {
+            callback.onWallpaperReady(wallpaper, builtIn);
+        }
+    }
+
+    private void invalidate() {
+        mGeneration++;
+        mReady = false;
+        mWallpaper = null;
+        mBuiltIn = null;
+        if (mLoading) {
+            mLoading = false;
+            if (!mCallbacks.isEmpty() && mSize != null) {
+                prefetch(mSize);
+            }
+        }
+    }
+
+    /**
+     * Drops the decoded wallpaper and stops watching for changes.
+     */
+    public void release() {
+        if (mReceiverRegistered) {
+            mContext.unregisterReceiver(mWallpaperChangedReceiver);
+            mReceiverRegistered = false;
+        }
+        mGeneration++;
+        mCallbacks.clear();
+        mReady = false;
+        mLoading = false;
+        mWallpaper = null;
+        mBuiltIn = null;
+    }
+
+    private Bitmap decode(Point size) {
+        ParcelFileDescriptor fd = null;
+        try {
+            IWallpaperManager service = IWallpaperManager.Stub.asInterface(
+                    ServiceManager.getService(Context.WALLPAPER_SERVICE));
+            fd = service.getWallpaper(null, new Bundle());
+            if (fd == null) {
+                return null;
+            }
+            return decodeRegion(fd.getFileDescriptor(), size);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to get the wallpaper", e);
+            return null;
+        } finally {
+            if (fd != null) {
+                try {
+                    fd.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static Bitmap decodeRegion(FileDescriptor fd, Point size) {
+        final BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFileDescriptor(fd, null, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+        // Every pass reads the file from its current position
+        if (!rewind(fd)) {
+            return null;
+        }
+        // Same crop as before: the top left screen sized corner, at full resolution
+        final Rect region = new Rect(0, 0, Math.min(size.x, bounds.outWidth),
+                Math.min(size.y, bounds.outHeight));
+        try {
+            final BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(fd, false);
+            try {
+                return decoder.decodeRegion(region, null);
+            } finally {
+                decoder.recycle();
+            }
+        } catch (IOException e) {
+            // Format without region support, subsample the whole image instead
+            if (!rewind(fd)) {
+                return null;
+            }
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = getSampleSize(bounds.outWidth, bounds.outHeight, size);
+            final Bitmap sampled = BitmapFactory.decodeFileDescriptor(fd, null, options);
+            if (sampled == null) {
+                return null;
+            }
+            final int scale = options.inSampleSize;
+            return Bitmap.createBitmap(sampled, 0, 0,
+                    Math.max(1, region.width() / scale), Math.max(1, region.height() / scale));
+        }
+    }
+
+    private static boolean rewind(FileDescriptor fd) {
+        try {
+            Os.lseek(fd, 0, OsConstants.SEEK_SET);
+            return true;
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Unable to rewind the wallpaper", e);
+            return false;
+        }
+    }
+
+    private static int getSampleSize(int width, int height, Point size) {
+        // Largest power of two keeping the whole image at least screen sized
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= size.x && height / (sampleSize * 2) >= size.y) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Collects settings writes and hands them to a {@link Backend} in one go at commit points.
+ * Writing the same key again before a commit replaces the pending value, so only the last one
+ * reaches the backend.
+ * <p/>
+ * Only depends on the JDK, so it can be exercised on a plain JVM with an in-memory
+ * {@link Backend}. All methods are thread safe; {@link #commit()} calls the backend on
+ * the calling thread, which should not be the UI thread for the provider backend.
+ */
+public final class SettingsBatch {
+
+    public static final int NAMESPACE_GLOBAL = 0;
+    public static final int NAMESPACE_SECURE = 1;
+    public static final int NAMESPACE_SYSTEM = 2;
+
+    public static final class Write {
+        public final int namespace;
+        public final String key;
+        public final String value;
+
+        private Write(int namespace, String key, String value) {
+            this.namespace = namespace;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    public interface Backend {
+        /**
+         * Applies the given writes, in order, with as few calls as the store allows.
+         */
+        void apply(List<Write> writes);
+    }
+
+    private final Backend mBackend;
+    private final LinkedHashMap<String, Write> mPending = new LinkedHashMap<>();
+
+    private int mRequested = 0;
+    private int mCoalesced = 0;
+    private int mCommits = 0;
+
+    public SettingsBatch(Backend backend) {
+        mBackend = backend;
+    }
+
+    public void putInt(int namespace, String key, int value) {
+        putString(namespace, key, Integer.toString(value));
+    }
+
+    public synchronized void putString(int namespace, String key, String value) {
+        mRequested++;
+        final String id = namespace + "/" + key;
+        // Re-insert so the write keeps the position of its latest update
+        if (mPending.remove(id) != null) {
+            mCoalesced++;
+        }
+        mPending.put(id, new Write(namespace, key, value));
+    }
+
+    /**
+     * @return Whether there are writes waiting for a commit
+     */
+    public synchronized boolean hasPendingWrites() {
+        return !mPending.isEmpty();
+    }
+
+    /**
+     * Hands all pending writes to the backend.
+     */
+    public void commit() {
+        final ArrayList<Write> writes;
+        synchronized (this) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            writes = new ArrayList<>(mPending.values());
+            mPending.clear();
+            mCommits++;
+        }
+        mBackend.apply(writes);
+    }
+
+    public synchronized String dumpStats() {
+        return String.format("settings batch: requested=%d coalesced=%d commits=%d pending=%d",
+                mRequested, mCoalesced, mCommits, mPending.size());
+    }
+}
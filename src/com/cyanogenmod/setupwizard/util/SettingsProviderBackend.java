@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.util;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a {@link SettingsBatch} to the settings provider. All namespaces live in the same
+ * provider, so the whole batch goes out as a single binder transaction.
+ * <p/>
+ * The batch is not atomic: the settings provider keeps the default applyBatch(), which runs
+ * the inserts one insert() at a time, so a failure part way leaves the earlier writes in
+ * place. The batch only saves binder round trips.
+ */
+public final class SettingsProviderBackend implements SettingsBatch.Backend {
+
+    private static final String TAG = SettingsProviderBackend.class.getSimpleName();
+
+    private final ContentResolver mContentResolver;
+
+    public SettingsProviderBackend(Context context) {
+        mContentResolver = context.getContentResolver();
+    }
+
+    @Override
+    public void apply(List<SettingsBatch.Write> writes) {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(writes.size());
+        for (SettingsBatch.Write write : writes) {
+            operations.add(ContentProviderOperation.newInsert(getUri(write.namespace))
+                    .withValue(Settings.NameValueTable.NAME, write.key)
+                    .withValue(Settings.NameValueTable.VALUE, write.value)
+                    .build());
+        }
+        try {
+            mContentResolver.applyBatch(Settings.AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Batched settings write failed, writing one by one", e);
+            for (SettingsBatch.Write write : writes) {
+                putString(write);
+            }
+        }
+    }
+
+    private static Uri getUri(int namespace) {
+        switch (namespace) {
+            case SettingsBatch.NAMESPACE_GLOBAL:
+                return Settings.Global.CONTENT_URI;
+            case SettingsBatch.NAMESPACE_SECURE:
+                return Settings.Secure.CONTENT_URI;
+            case SettingsBatch.NAMESPACE_SYSTEM:
+                return Settings.System.CONTENT_URI;
+            default:
+                throw new IllegalArgumentException("Unknown settings namespace " + namespace);
+        }
+    }
+
+    private void putString(SettingsBatch.Write write) {
+        switch (write.namespace) {
+            case SettingsBatch.NAMESPACE_GLOBAL:
+                Settings.Global.putString(mContentResolver, write.key, write.value);
+                break;
+            case SettingsBatch.NAMESPACE_SECURE:
+                Settings.Secure.putString(mContentResolver, write.key, write.value);
+                break;
+            case SettingsBatch.NAMESPACE_SYSTEM:
+                Settings.System.putString(mContentResolver, write.key, write.value);
+                break;
+        }
+    }
+}
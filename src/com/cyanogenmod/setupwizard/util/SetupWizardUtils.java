@@ -27,14 +27,11 @@ import android.net.NetworkInfo;
 import android.net.wifi.WifiManager;
 import android.os.UserHandle;
 import android.os.UserManager;
-import android.telephony.ServiceState;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
-
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.GooglePlayServicesUtil;
+import com.cyanogenmod.setupwizard.setup.ProgressJournal;
 
 import org.namelessrom.setupwizard.SetupWizardApp;
 
@@ -94,14 +91,11 @@ public class SetupWizardUtils {
     }
 
     public static boolean hasTelephony(Context context) {
-        PackageManager packageManager = context.getPackageManager();
-        return packageManager.hasSystemFeature(PackageManager.FEATURE_TELEPHONY);
+        return getDeviceCapabilities(context).hasTelephony();
     }
 
     public static boolean isMultiSimDevice(Context context) {
-        TelephonyManager tm =
-                (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
-        return tm.isMultiSimEnabled();
+        return getDeviceCapabilities(context).isMultiSimDevice();
     }
 
     public static boolean isGSMPhone(Context context) {
@@ -112,30 +106,27 @@ public class SetupWizardUtils {
     }
 
     public static boolean isSimMissing(Context context) {
-        TelephonyManager tm =
-                (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
-        int simCount = SubscriptionManager.from(context).getDefaultDataPhoneId();
-        for (int i = 0; i < simCount; i++) {
-            int simState = tm.getSimState(i);
-            if (simState != TelephonyManager.SIM_STATE_ABSENT &&
-                    simState != TelephonyManager.SIM_STATE_UNKNOWN) {
-                return false;
-            }
-        }
-        return true;
+        return getTelephonySnapshot(context).isSimMissing();
     }
 
-    public static boolean isRadioReady(Context context, ServiceState state) {
-        final SetupWizardApp setupWizardApp = (SetupWizardApp)context.getApplicationContext();
-        if (setupWizardApp.isRadioReady()) {
-            return true;
-        } else {
-            final boolean ready = state != null
-                    && state.getState() != ServiceState.STATE_POWER_OFF;
-            setupWizardApp.setRadioReady(ready);
-            return ready;
-        }
+    public static DeviceCapabilities getDeviceCapabilities(Context context) {
+        return ((SetupWizardApp) context.getApplicationContext()).getDeviceCapabilities();
+    }
+
+    public static TelephonySnapshot getTelephonySnapshot(Context context) {
+        return ((SetupWizardApp) context.getApplicationContext()).getTelephonySnapshot();
+    }
+
+    public static ProgressJournal getProgressJournal(Context context) {
+        return ((SetupWizardApp) context.getApplicationContext()).getProgressJournal();
+    }
+
+    public static SettingsBatch getSettingsBatch(Context context) {
+        return ((SetupWizardApp) context.getApplicationContext()).getSettingsBatch();
+    }
 
+    public static RadioStateTracker getRadioStateTracker(Context context) {
+        return ((SetupWizardApp) context.getApplicationContext()).getRadioStateTracker();
     }
 
     public static boolean isGuestUser(Context context) {
@@ -148,8 +139,7 @@ public class SetupWizardUtils {
     }
 
     public static boolean hasGMS(Context context) {
-        return GooglePlayServicesUtil.isGooglePlayServicesAvailable(context) !=
-                ConnectionResult.SERVICE_MISSING;
+        return getDeviceCapabilities(context).hasGMS();
     }
 
     public static boolean accountExists(Context context, String accountType) {
@@ -226,8 +216,7 @@ public class SetupWizardUtils {
     }
 
     public static boolean hasLeanback(Context context) {
-        PackageManager packageManager = context.getPackageManager();
-        return packageManager.hasSystemFeature(PackageManager.FEATURE_LEANBACK);
+        return getDeviceCapabilities(context).hasLeanback();
     }
 
     public static final ComponentName mTvwifisettingsActivity =
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import org.namelessrom.setupwizard.SetupWizardApp;
+
+import java.util.ArrayList;
+
+/**
+ * Timestamps the phases of a cold start, from {@link SetupWizardApp#onCreate()} to the first
+ * frame of the setup activity. Each phase is timed from the end of the previous one; the
+ * breakdown goes to logcat once the first frame is drawn. Deferred phases run on another
+ * thread and have a timeline of their own, so they never shorten a main thread phase; those
+ * finishing after the first frame are logged as they end. Main thread phases are ignored
+ * after the first frame, e.g. when the activity gets recreated.
+ * <p/>
+ * Only active when ro.nameless.debug is set. Phases may be marked from any thread.
+ */
+public final class StartupTracer {
+
+    private static final String TAG = StartupTracer.class.getSimpleName();
+
+    private static long sStartMs;
+    private static long sLastMs;
+    private static boolean sStarted = false;
+    private static boolean sDumped = false;
+    private static final ArrayList<String> sPhases = new ArrayList<>();
+    private static final ArrayList<Long> sDurations = new ArrayList<>();
+
+    private static long sDeferredLastMs;
+    private static final ArrayList<String> sDeferredPhases = new ArrayList<>();
+    private static final ArrayList<Long> sDeferredDurations = new ArrayList<>();
+
+    private StartupTracer() {}
+
+    public static boolean isEnabled() {
+        return SetupWizardApp.DEBUG;
+    }
+
+    /**
+     * Called first thing when the process starts.
+     */
+    public static synchronized void begin() {
+        if (!isEnabled()) {
+            return;
+        }
+        sStartMs = SystemClock.elapsedRealtime();
+        sLastMs = sStartMs;
+        sStarted = true;
+    }
+
+    /**
+     * Marks the end of the named phase of the startup on the main thread.
+     */
+    public static synchronized void phase(String name) {
+        if (!sStarted || sDumped) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        sPhases.add(name);
+        sDurations.add(now - sLastMs);
+        sLastMs = now;
+    }
+
+    /**
+     * Marks the start of the deferred initialization, which the first deferred phase is timed
+     * from.
+     */
+    public static synchronized void beginDeferred() {
+        if (!sStarted) {
+            return;
+        }
+        sDeferredLastMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Marks the end of the named phase of the deferred initialization.
+     */
+    public static synchronized void deferredPhase(String name) {
+        if (!sStarted) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        final long duration = now - sDeferredLastMs;
+        sDeferredLastMs = now;
+        if (sDumped) {
+            Log.d(TAG, String.format("%s: %dms, done at +%dms", name, duration,
+                    now - sStartMs));
+            return;
+        }
+        sDeferredPhases.add(name);
+        sDeferredDurations.add(duration);
+    }
+
+    /**
+     * Marks the first frame once the given view is about to be drawn for the first time, then
+     * logs the breakdown. Only the first call per process has an effect.
+     */
+    public static void traceFirstFrame(final View view) {
+        synchronized (StartupTracer.class) {
+            if (!sStarted || sDumped) {
+                return;
+            }
+        }
+        view.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        view.getViewTreeObserver().removeOnPreDrawListener(this);
+                        onFirstFrame();
+                        return true;
+                    }
+                });
+    }
+
+    private static synchronized void onFirstFrame() {
+        if (sDumped) {
+            return;
+        }
+        phase("first_frame");
+        final StringBuilder sb = new StringBuilder("cold start: total=")
+                .append(sLastMs - sStartMs).append("ms");
+        for (int i = 0; i < sPhases.size(); i++) {
+            sb.append(' ').append(sPhases.get(i)).append('=').append(sDurations.get(i))
+                    .append("ms");
+        }
+        if (!sDeferredPhases.isEmpty()) {
+            sb.append(" deferred:");
+            for (int i = 0; i < sDeferredPhases.size(); i++) {
+                sb.append(' ').append(sDeferredPhases.get(i)).append('=')
+                        .append(sDeferredDurations.get(i)).append("ms");
+            }
+        }
+        Log.d(TAG, sb.toString());
+        sDumped = true;
+        sPhases.clear();
+        sDurations.clear();
+        sDeferredPhases.clear();
+        sDeferredDurations.clear();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.util;
+
+import android.content.Context;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable view of the sim slots and subscriptions, captured once and shared by every page
+ * until the next sim state or default data change.
+ */
+public final class TelephonySnapshot {
+
+    private static final String TAG = TelephonySnapshot.class.getSimpleName();
+
+    private static final AtomicInteger sCaptures = new AtomicInteger();
+    private static final AtomicInteger sBinderCallsMade = new AtomicInteger();
+    // Binder calls the queries served from a snapshot would have made on their own
+    private static final AtomicInteger sBinderCallsReplaced = new AtomicInteger();
+
+    private final int[] mSimStates;
+    private final List<SubscriptionInfo> mActiveSubscriptions;
+    private final int mDefaultDataPhoneId;
+    private final int mDefaultDataSubId;
+
+    private TelephonySnapshot(int[] simStates, List<SubscriptionInfo> activeSubscriptions,
+            int defaultDataPhoneId, int defaultDataSubId) {
+        mSimStates = simStates;
+        mActiveSubscriptions = activeSubscriptions;
+        mDefaultDataPhoneId = defaultDataPhoneId;
+        mDefaultDataSubId = defaultDataSubId;
+    }
+
+    public static TelephonySnapshot capture(Context context) {
+        TelephonyManager tm = TelephonyManager.from(context);
+        int simSlotCount = tm.getSimCount();
+        int[] simStates = new int[simSlotCount];
+        for (int i = 0; i < simSlotCount; i++) {
+            try {
+                simStates[i] = tm.getSimState(i);
+            } catch (IllegalStateException ise) {
+                Log.e(TAG, "Unable to get sim state from TelephonyManager");
+                simStates[i] = TelephonyManager.SIM_STATE_UNKNOWN;
+            }
+        }
+        SubscriptionManager sm = SubscriptionManager.from(context);
+        List<SubscriptionInfo> activeSubscriptions = sm.getActiveSubscriptionInfoList();
+        activeSubscriptions = activeSubscriptions != null
+                ? Collections.unmodifiableList(new ArrayList<>(activeSubscriptions))
+                : Collections.<SubscriptionInfo>emptyList();
+        int defaultDataPhoneId = sm.getDefaultDataPhoneId();
+        int defaultDataSubId = SubscriptionManager.getDefaultDataSubId();
+        sCaptures.incrementAndGet();
+        sBinderCallsMade.addAndGet(simSlotCount + 4);
+        return new TelephonySnapshot(simStates, activeSubscriptions, defaultDataPhoneId,
+                defaultDataSubId);
+    }
+
+    public int getSimSlotCount() {
+        return mSimStates.length;
+    }
+
+    public int getSimState(int slot) {
+        return mSimStates[slot];
+    }
+
+    /**
+     * @return The active subscriptions, in place of
+     * {@link SubscriptionManager#getActiveSubscriptionInfoList()}
+     */
+    public List<SubscriptionInfo> getActiveSubscriptions() {
+        sBinderCallsReplaced.incrementAndGet();
+        return mActiveSubscriptions;
+    }
+
+    /**
+     * @return The default data phone id, in place of
+     * {@link SubscriptionManager#getDefaultDataPhoneId()}
+     */
+    public int getDefaultDataPhoneId() {
+        sBinderCallsReplaced.incrementAndGet();
+        return mDefaultDataPhoneId;
+    }
+
+    /**
+     * @return The default data subscription, in place of
+     * {@link SubscriptionManager#getDefaultDataSubId()}
+     */
+    public int getDefaultDataSubId() {
+        sBinderCallsReplaced.incrementAndGet();
+        return mDefaultDataSubId;
+    }
+
+    // We only care that one sim is inserted
+    public boolean isSimInserted() {
+        for (int i = 0; i < mSimStates.length; i++) {
+            int state = mSimStates[i];
+            if (state != TelephonyManager.SIM_STATE_ABSENT
+                    && state != TelephonyManager.SIM_STATE_UNKNOWN) {
+                // getSimCount() plus one getSimState() per slot visited
+                sBinderCallsReplaced.addAndGet(i + 2);
+                return true;
+            }
+        }
+        sBinderCallsReplaced.addAndGet(mSimStates.length + 1);
+        return false;
+    }
+
+    // We only care that each slot has a sim
+    public boolean allSimsInserted() {
+        for (int i = 0; i < mSimStates.length; i++) {
+            if (mSimStates[i] == TelephonyManager.SIM_STATE_ABSENT) {
+                sBinderCallsReplaced.addAndGet(i + 2);
+                return false;
+            }
+        }
+        // ... plus getActiveSubscriptionInfoCount()
+        sBinderCallsReplaced.addAndGet(mSimStates.length + 2);
+        return mSimStates.length == mActiveSubscriptions.size();
+    }
+
+    // Only looks at the slots below the default data phone id, like the check this replaced;
+    // with no default data phone every sim counts as missing
+    public boolean isSimMissing() {
+        final int slots = Math.min(mDefaultDataPhoneId, mSimStates.length);
+        for (int i = 0; i < slots; i++) {
+            int state = mSimStates[i];
+            if (state != TelephonyManager.SIM_STATE_ABSENT
+                    && state != TelephonyManager.SIM_STATE_UNKNOWN) {
+                // getDefaultDataPhoneId() plus one getSimState() per slot visited
+                sBinderCallsReplaced.addAndGet(i + 2);
+                return false;
+            }
+        }
+        // The replaced loop asked for every slot below the default data phone id, even
+        // past the last slot
+        sBinderCallsReplaced.addAndGet(Math.max(mDefaultDataPhoneId, 0) + 1);
+        return true;
+    }
+
+    public static int getCaptureCount() {
+        return sCaptures.get();
+    }
+
+    public static int getBinderCallsMade() {
+        return sBinderCallsMade.get();
+    }
+
+    /**
+     * @return The binder calls the snapshots saved overall, what the replaced queries would
+     * have made less what the captures made. Negative while a capture has barely been used.
+     */
+    public static int getBinderCallsSaved() {
+        return sBinderCallsReplaced.get() - sBinderCallsMade.get();
+    }
+
+    public static String dumpStats() {
+        return String.format("telephony snapshots: captured=%d binderCalls=%d saved=%d",
+                getCaptureCount(), getBinderCallsMade(), getBinderCallsSaved());
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.util;
+
+import android.content.Context;
+import android.content.res.XmlResourceParser;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import libcore.util.ZoneInfoDB;
+
+import org.namelessrom.setupwizard.R;
+import org.namelessrom.setupwizard.SetupWizardApp;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Columnar table of the selectable timezones and their display names.
+ * <p/>
+ * The table is built once from res/xml/timezones.xml and cached both in memory and in the
+ * cache directory, keyed by the tzdata version and the locale. Offsets shift with daylight
+ * saving time, so they are left out of the cache: {@link #sortByOffset(long)} computes them
+ * once per hour; offsets only move on daylight saving switches, which that catches within
+ * the hour.
+ */
+public final class TimeZoneTable {
+
+    private static final String TAG = TimeZoneTable.class.getSimpleName();
+
+    private static final String XMLTAG_TIMEZONE = "timezone";
+    private static final String CACHE_FILE = "timezones.bin";
+    private static final int CACHE_FORMAT_VERSION = 2;
+
+    private static final int HOURS_1 = 60 * 60000;
+
+    // Sort keys pack the offset in minutes above the index of the zone
+    private static final int INDEX_BITS = 16;
+    private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+
+    private static final int BUCKET_SIZE = 15 * 60000;
+    private static final int MIN_OFFSET = -12 * HOURS_1;
+    private static final int MAX_OFFSET = 14 * HOURS_1;
+    private static final int BUCKET_COUNT = (MAX_OFFSET - MIN_OFFSET) / BUCKET_SIZE + 1;
+
+    private static final Object sLock = new Object();
+    private static TimeZoneTable sCached;
+
+    private final String mKey;
+    private final String[] mIds;
+    private final String[] mNames;
+    // Resolved while loading, so sorting by offset does not hit tzdata
+    private final TimeZone[] mZones;
+    // The ids in sorted order and the index of each, for binary searching an id
+    private final String[] mSortedIds;
+    private final int[] mSortedIdIndices;
+
+    private volatile OffsetList mOffsetList;
+
+    private TimeZoneTable(String key, String[] ids, String[] names) {
+        mKey = key;
+        mIds = ids;
+        mNames = names;
+        mZones = new TimeZone[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            mZones[i] = TimeZone.getTimeZone(ids[i]);
+        }
+        mSortedIds = ids.clone();
+        Arrays.sort(mSortedIds);
+        mSortedIdIndices = new int[ids.length];
+        // A duplicate id leaves its twin unresolved, indexOf() then falls back to the offset
+        Arrays.fill(mSortedIdIndices, -1);
+        for (int i = 0; i < ids.length; i++) {
+            mSortedIdIndices[Arrays.binarySearch(mSortedIds, ids[i])] = i;
+        }
+    }
+
+    public int size() {
+        return mIds.length;
+    }
+
+    /**
+     * @return Whether the locale and the tzdata version are still the ones the table was
+     * built for
+     */
+    public boolean isCurrent() {
+        return mKey.equals(getCacheKey());
+    }
+
+    /**
+     * @return The timezones sorted by their offset at the given time; zones sharing an offset
+     * keep their order from the xml. The list is reused for the rest of the hour.
+     */
+    public OffsetList sortByOffset(long now) {
+        final OffsetList cached = mOffsetList;
+        if (cached != null && cached.isCurrent(now)) {
+            return cached;
+        }
+        final int count = mIds.length;
+        final int[] rawOffsets = new int[count];
+        final int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            rawOffsets[i] = mZones[i].getOffset(now);
+            // Offsets are whole minutes for every zone in the list
+            order[i] = (rawOffsets[i] / 60000 << INDEX_BITS) | i;
+        }
+        Arrays.sort(order);
+
+        final String[] sortedIds = new String[count];
+        final String[] sortedNames = new String[count];
+        final int[] sortedOffsets = new int[count];
+        final String[] gmtLabels = new String[count];
+        final int[] positions = new int[count];
+        final StringBuilder sb = new StringBuilder(9);
+        for (int i = 0; i < count; i++) {
+            final int index = order[i] & INDEX_MASK;
+            sortedIds[i] = mIds[index];
+            sortedNames[i] = mNames[index];
+            sortedOffsets[i] = rawOffsets[index];
+            positions[index] = i;
+            sb.setLength(0);
+            gmtLabels[i] = formatOffset(sb, rawOffsets[index]);
+        }
+        final OffsetList list = new OffsetList(this, now, sortedIds, sortedNames, sortedOffsets,
+                gmtLabels, positions);
+        mOffsetList = list;
+        return list;
+    }
+
+    /**
+     * @return The index of the given zone id in the table, or -1 if it is not listed
+     */
+    private int indexOfId(String id) {
+        final int rank = Arrays.binarySearch(mSortedIds, id);
+        return rank >= 0 ? mSortedIdIndices[rank] : -1;
+    }
+
+    /**
+     * The timezones of the table sorted by their offset at a given time.
+     */
+    public static final class OffsetList {
+
+        private final TimeZoneTable mTable;
+        private final long mTime;
+        private final String[] mIds;
+        private final String[] mNames;
+        private final int[] mOffsets;
+        private final String[] mGmtLabels;
+
+        // Position of every zone of the table, and first position for every 15 minute
+        // offset bucket
+        private final int[] mPositions;
+        private final int[] mOffsetBuckets;
+
+        private OffsetList(TimeZoneTable table, long time, String[] ids, String[] names,
+                int[] offsets, String[] gmtLabels, int[] positions) {
+            mTable = table;
+            mTime = time;
+            mIds = ids;
+            mNames = names;
+            mOffsets = offsets;
+            mGmtLabels = gmtLabels;
+            mPositions = positions;
+
+            mOffsetBuckets = new int[BUCKET_COUNT];
+            Arrays.fill(mOffsetBuckets, -1);
+            for (int i = 0; i < offsets.length; i++) {
+                final int bucket = getBucket(offsets[i]);
+                if (mOffsetBuckets[bucket] == -1) {
+                    mOffsetBuckets[bucket] = i;
+                }
+            }
+        }
+
+        public int size() {
+            return mIds.length;
+        }
+
+        /**
+         * @return Whether the list was sorted in the same hour as the given time, so the
+         * offsets still hold
+         */
+        public boolean isCurrent(long now) {
+            return now / HOURS_1 == mTime / HOURS_1;
+        }
+
+        public String getId(int position) {
+            return mIds[position];
+        }
+
+        public String getName(int position) {
+            return mNames[position];
+        }
+
+        public int getOffset(int position) {
+            return mOffsets[position];
+        }
+
+        public String getGmtLabel(int position) {
+            return mGmtLabels[position];
+        }
+
+        /**
+         * @return The position of the given zone id, or -1 if it is not listed
+         */
+        public int indexOf(String id) {
+            final int index = mTable.indexOfId(id);
+            return index != -1 ? mPositions[index] : -1;
+        }
+
+        /**
+         * @return The first listed zone whose offset is closest to the given offset,
+         * or -1 if the list is empty
+         */
+        public int nearestIndexForOffset(int offset) {
+            final int bucket = getBucket(offset);
+            for (int distance = 0; distance < BUCKET_COUNT; distance++) {
+                // Prefer the lower bucket when equally close, matching the list order
+                if (bucket - distance >= 0 && mOffsetBuckets[bucket - distance] != -1) {
+                    return mOffsetBuckets[bucket - distance];
+                }
+                if (bucket + distance < BUCKET_COUNT
+                        && mOffsetBuckets[bucket + distance] != -1) {
+                    return mOffsetBuckets[bucket + distance];
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return The position of the given zone, falling back to the closest listed offset
+         */
+        public int indexOf(TimeZone tz) {
+            final int position = indexOf(tz.getID());
+            return position != -1 ? position : nearestIndexForOffset(tz.getOffset(mTime));
+        }
+    }
+
+    private static int getBucket(int offset) {
+        final int bucket = (offset - MIN_OFFSET) / BUCKET_SIZE;
+        return Math.max(0, Math.min(BUCKET_COUNT - 1, bucket));
+    }
+
+    /**
+     * Returns the cached table, loading it from disk or from resources if needed.
+     */
+    public static TimeZoneTable get(Context context) {
+        final String key = getCacheKey();
+        synchronized (sLock) {
+            if (sCached != null && sCached.mKey.equals(key)) {
+                return sCached;
+            }
+            final long start = SystemClock.elapsedRealtime();
+            final AtomicFile file = new AtomicFile(new File(context.getCacheDir(), CACHE_FILE));
+            TimeZoneTable table = readFromDisk(file, key);
+            final boolean fromDisk = table != null;
+            if (table == null) {
+                table = build(context, key);
+                writeToDisk(file, table);
+            }
+            if (SetupWizardApp.DEBUG) {
+                Log.d(TAG, String.format("loaded %d timezones from %s in %d ms", table.size(),
+                        fromDisk ? "disk" : "resources", SystemClock.elapsedRealtime() - start));
+            }
+            sCached = table;
+            return table;
+        }
+    }
+
+    private static String getCacheKey() {
+        return ZoneInfoDB.getInstance().getVersion() + '/' + Locale.getDefault().toString();
+    }
+
+    private static TimeZoneTable build(Context context, String key) {
+        final ArrayList<String> ids = new ArrayList<>();
+        final ArrayList<String> names = new ArrayList<>();
+        try {
+            XmlResourceParser xrp = context.getResources().getXml(R.xml.timezones);
+            try {
+                int type;
+                while ((type = xrp.next()) != XmlResourceParser.END_DOCUMENT) {
+                    if (type == XmlResourceParser.START_TAG
+                            && XMLTAG_TIMEZONE.equals(xrp.getName())) {
+                        ids.add(xrp.getAttributeValue(0));
+                        names.add(xrp.nextText());
+                    }
+                }
+            } finally {
+                xrp.close();
+            }
+        } catch (XmlPullParserException xppe) {
+            Log.e(TAG, "Ill-formatted timezones.xml file");
+        } catch (IOException ioe) {
+            Log.e(TAG, "Unable to read timezones.xml file");
+        }
+        return new TimeZoneTable(key, ids.toArray(new String[ids.size()]),
+                names.toArray(new String[names.size()]));
+    }
+
+    private static String formatOffset(StringBuilder name, int offset) {
+        final int p = Math.abs(offset);
+        name.append("GMT");
+        name.append(offset < 0 ? '-' : '+');
+        name.append(p / HOURS_1);
+        name.append(':');
+        final int min = (p / 60000) % 60;
+        if (min < 10) {
+            name.append('0');
+        }
+        name.append(min);
+        return name.toString();
+    }
+
+    private static TimeZoneTable readFromDisk(AtomicFile file, String key) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(file.openRead());
+            if (in.readInt() != CACHE_FORMAT_VERSION || !key.equals(in.readUTF())) {
+                return null;
+            }
+            final int count = in.readInt();
+            final String[] ids = new String[count];
+            final String[] names = new String[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = in.readUTF();
+                names[i] = in.readUTF();
+            }
+            return new TimeZoneTable(key, ids, names);
+        } catch (IOException e) {
+            // Missing or truncated cache, rebuild it
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static void writeToDisk(AtomicFile file, TimeZoneTable table) {
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(CACHE_FORMAT_VERSION);
+            out.writeUTF(table.mKey);
+            out.writeInt(table.size());
+            for (int i = 0; i < table.size(); i++) {
+                out.writeUTF(table.mIds[i]);
+                out.writeUTF(table.mNames[i]);
+            }
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write timezone cache", e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.util;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.transition.Transition;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.WindowManager;
+
+import org.namelessrom.setupwizard.SetupWizardApp;
+
+/**
+ * Measures page transitions: time from the next/previous click to the first frame of the new
+ * page and to the end of its enter transition, the time spent inflating and initializing the
+ * page, and the number of frames dropped in between. Results go to logcat.
+ * <p/>
+ * Navigations that do not end in a page transition, e.g. pages launching an activity or
+ * waiting for their data, stop the profiling once the load action is done, or at the latest
+ * after {@link #MAX_PROFILE_SECONDS}.
+ * <p/>
+ * Only active when ro.nameless.debug is set. All methods must be called on the main thread.
+ */
+public final class TransitionProfiler implements Choreographer.FrameCallback {
+
+    private static final String TAG = TransitionProfiler.class.getSimpleName();
+
+    private static final int MAX_PROFILE_SECONDS = 3;
+
+    private static TransitionProfiler sInstance;
+
+    private final long mFrameIntervalNanos;
+    private final int mMaxFrames;
+
+    private boolean mActive = false;
+    private String mPageKey;
+    private long mStartMs;
+    private long mFirstFrameMs;
+    private long mInflateMs;
+    private long mInitializeMs;
+    private long mLastFrameNanos;
+    private int mDroppedFrames;
+    private int mFrames;
+
+    private TransitionProfiler(Context context) {
+        mFrameIntervalNanos = getFrameIntervalNanos(context);
+        mMaxFrames = (int) (MAX_PROFILE_SECONDS * 1000000000L / mFrameIntervalNanos);
+    }
+
+    /**
+     * @return The time between two vsyncs of the default display
+     */
+    public static long getFrameIntervalNanos(Context context) {
+        final float refreshRate = ((WindowManager) context.getSystemService(
+                Context.WINDOW_SERVICE)).getDefaultDisplay().getRefreshRate();
+        return (long) (1000000000 / refreshRate);
+    }
+
+    public static TransitionProfiler get() {
+        if (sInstance == null) {
+            sInstance = new TransitionProfiler(SetupWizardApp.get());
+        }
+        return sInstance;
+    }
+
+    public static boolean isEnabled() {
+        return SetupWizardApp.DEBUG;
+    }
+
+    /**
+     * Called when the user asks for the next or previous page.
+     */
+    public void onNavigationStarted() {
+        if (!isEnabled()) {
+            return;
+        }
+        stop();
+        mActive = true;
+        mPageKey = null;
+        mStartMs = SystemClock.uptimeMillis();
+        mFirstFrameMs = 0;
+        mInflateMs = 0;
+        mInitializeMs = 0;
+        mLastFrameNanos = 0;
+        mDroppedFrames = 0;
+        mFrames = 0;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Called when a page is about to be shown with the given enter transition.
+     */
+    public void onPageLoading(String pageKey, Transition transition) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (!mActive) {
+            // Navigation not started from the button bar, e.g. auto advance
+            onNavigationStarted();
+        }
+        mPageKey = pageKey;
+        transition.addListener(new Transition.TransitionListener() {
+            @Override
+            public void onTransitionStart(Transition transition) {}
+
+            @Override
+            public void onTransitionEnd(Transition transition) {
+                transition.removeListener(this);
+                onTransitionEnded();
+            }
+
+            @Override
+            public void onTransitionCancel(Transition transition) {
+                transition.removeListener(this);
+                stop();
+            }
+
+            @Override
+            public void onTransitionPause(Transition transition) {}
+
+            @Override
+            public void onTransitionResume(Transition transition) {}
+        });
+    }
+
+    /**
+     * Called once the load action of a navigation is done. Stops profiling if it did not
+     * announce a page transition.
+     */
+    public void onLoadActionDone() {
+        if (mActive && mPageKey == null) {
+            stop();
+        }
+    }
+
+    public void onPageInflated(String pageKey, long inflateMs, long initializeMs) {
+        if (mActive && pageKey.equals(mPageKey)) {
+            mInflateMs = inflateMs;
+            mInitializeMs = initializeMs;
+        }
+    }
+
+    public void onPageFirstFrame(String pageKey) {
+        if (mActive && pageKey.equals(mPageKey) && mFirstFrameMs == 0) {
+            mFirstFrameMs = SystemClock.uptimeMillis();
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mActive) {
+            return;
+        }
+        if (mLastFrameNanos != 0) {
+            final long skipped = (frameTimeNanos - mLastFrameNanos) / mFrameIntervalNanos - 1;
+            if (skipped > 0) {
+                mDroppedFrames += skipped;
+            }
+        }
+        mLastFrameNanos = frameTimeNanos;
+        if (++mFrames + mDroppedFrames > mMaxFrames) {
+            Log.d(TAG, String.format("%s: no transition end after %ds, giving up", mPageKey,
+                    MAX_PROFILE_SECONDS));
+            stop();
+            return;
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    private void onTransitionEnded() {
+        if (!mActive) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        Log.d(TAG, String.format("%s: inflate=%dms initializePage=%dms firstFrame=%dms "
+                        + "transitionEnd=%dms droppedFrames=%d", mPageKey, mInflateMs,
+                mInitializeMs, mFirstFrameMs != 0 ? mFirstFrameMs - mStartMs : -1,
+                now - mStartMs, mDroppedFrames));
+        stop();
+    }
+
+    private void stop() {
+        if (mActive) {
+            Choreographer.getInstance().removeFrameCallback(this);
+            mActive = false;
+        }
+    }
+}
@@ -21,12 +21,34 @@ import android.app.Application;
 import android.app.StatusBarManager;
 import android.content.Context;
 import android.content.Intent;
+import android.os.AsyncTask;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.SystemProperties;
 import android.content.pm.PackageManager;
-import android.os.Handler;
 import android.provider.Settings;
+import android.util.Log;
 
+import com.cyanogenmod.setupwizard.setup.ProgressJournal;
+import com.cyanogenmod.setupwizard.util.CaptivePortalProbe;
+import com.cyanogenmod.setupwizard.util.DeviceCapabilities;
+import com.cyanogenmod.setupwizard.util.LocaleCatalog;
+import com.cyanogenmod.setupwizard.util.ProbeLatencyStore;
+import com.cyanogenmod.setupwizard.util.RadioStateTracker;
+import com.cyanogenmod.setupwizard.util.SettingsBatch;
+import com.cyanogenmod.setupwizard.util.SettingsProviderBackend;
 import com.cyanogenmod.setupwizard.util.SetupWizardUtils;
+import com.cyanogenmod.setupwizard.util.StartupTracer;
+import com.cyanogenmod.setupwizard.util.TelephonySnapshot;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SetupWizardApp extends Application {
 
@@ -65,27 +87,79 @@ public class SetupWizardApp extends Application {
 
     public static final int RADIO_READY_TIMEOUT = 10 * 1000;
 
-    private boolean mIsRadioReady = false;
+    private static final String[] CAPTIVE_PORTAL_SERVERS = {
+            "clients3.google.com",
+            "connectivitycheck.gstatic.com",
+            "connectivitycheck.android.com"
+    };
+    private static final long CAPTIVE_PORTAL_VERDICT_TTL_MS = 30 * 1000;
 
     private StatusBarManager mStatusBarManager;
 
+    private DeviceCapabilities mDeviceCapabilities;
+
+    private RadioStateTracker mRadioStateTracker;
+
+    private volatile TelephonySnapshot mTelephonySnapshot;
+    // Bumped on every invalidation, a capture that overlapped one is not published
+    private int mTelephonySnapshotGeneration = 0;
+    private final Object mTelephonySnapshotLock = new Object();
+    private final Object mTelephonySnapshotCaptureLock = new Object();
+
+    private SettingsBatch mSettingsBatch;
+
+    private CaptivePortalProbe mCaptivePortalProbe;
+
+    private ProgressJournal mProgressJournal;
 
     private static SetupWizardApp sInstance;
 
-    private final Handler mHandler = new Handler();
+    // Work the first frame does not depend on, run in order off the main thread
+    private final ArrayList<String> mDeferredNames = new ArrayList<>();
+    private final ArrayList<Runnable> mDeferredTasks = new ArrayList<>();
 
-    private final Runnable mRadioTimeoutRunnable = new Runnable() {
+    private final MessageQueue.IdleHandler mDeferredInitIdleHandler =
+            new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            final String[] names = mDeferredNames.toArray(new String[mDeferredNames.size()]);
+            final Runnable[] tasks = mDeferredTasks.toArray(new Runnable[mDeferredTasks.size()]);
+            mDeferredNames.clear();
+            mDeferredTasks.clear();
+            // Not the serial executor, the page visibility queries must not wait behind this;
+            // a single runnable keeps the tasks in order
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    StartupTracer.beginDeferred();
+                    for (int i = 0; i < tasks.length; i++) {
+                        tasks[i].run();
+                        StartupTracer.deferredPhase(names[i]);
+                    }
+                }
+            });
+            return false;
+        }
+    };
+
+    private final Runnable mCommitSettingsRunnable = new Runnable() {
         @Override
         public void run() {
-            mIsRadioReady = true;
+            mSettingsBatch.commit();
         }
     };
 
     @Override
     public void onCreate() {
         super.onCreate();
+        StartupTracer.begin();
         sInstance = this;
+        mDeviceCapabilities = new DeviceCapabilities(this);
+        mSettingsBatch = new SettingsBatch(new SettingsProviderBackend(this));
         mStatusBarManager = (StatusBarManager)getSystemService(Context.STATUS_BAR_SERVICE);
+        mRadioStateTracker = new RadioStateTracker(this);
+        StartupTracer.phase("app_init");
+        boolean runSetup = true;
         try {
             // Since this is a new component, we need to disable here if the user
             // has already been through setup on a previous version.
@@ -93,33 +167,90 @@ public class SetupWizardApp extends Application {
             if (!isOwner
                     || Settings.Secure.getInt(getContentResolver(),
                     Settings.Secure.USER_SETUP_COMPLETE) == 1) {
-                Settings.Global.putInt(getContentResolver(), Settings.Global.DEVICE_PROVISIONED, 1);
-                Settings.Secure.putInt(getContentResolver(),
+                runSetup = false;
+                mSettingsBatch.putInt(SettingsBatch.NAMESPACE_GLOBAL,
+                        Settings.Global.DEVICE_PROVISIONED, 1);
+                mSettingsBatch.putInt(SettingsBatch.NAMESPACE_SECURE,
                         Settings.Secure.USER_SETUP_COMPLETE, 1);
+                mSettingsBatch.commit();
                 SetupWizardUtils.disableGMSSetupWizard(this);
-                SetupWizardUtils.disableSetupWizard(this);
+                // Before disabling ourselves, which may get the process killed
                 if (!isOwner) {
                     disableThemeComponentsForSecondaryUser();
                 }
-            }  else {
-                disableCaptivePortalDetection();
+                SetupWizardUtils.disableSetupWizard(this);
             }
         } catch (Settings.SettingNotFoundException e) {
             // Continue with setup
+        }
+        StartupTracer.phase("provisioning_check");
+        if (runSetup) {
+            // Only the wizard needs these, don't start them for a user we just disabled it for
+            mDeviceCapabilities.probe();
+            LocaleCatalog.preload(this);
             disableCaptivePortalDetection();
+            deferInit("captive_portal", mCommitSettingsRunnable);
+            mRadioStateTracker.start(RADIO_READY_TIMEOUT);
+            StartupTracer.phase("setup_init");
+        }
+        if (!mDeferredTasks.isEmpty()) {
+            Looper.myQueue().addIdleHandler(mDeferredInitIdleHandler);
         }
-        mHandler.postDelayed(mRadioTimeoutRunnable, SetupWizardApp.RADIO_READY_TIMEOUT);
     }
 
-    public boolean isRadioReady() {
-        return mIsRadioReady;
+    /**
+     * Runs the given task on a background thread once the main thread first goes idle, which
+     * is usually right after the first frame of the setup activity has been scheduled.
+     */
+    private void deferInit(String name, Runnable task) {
+        mDeferredNames.add(name);
+        mDeferredTasks.add(task);
     }
 
-    public void setRadioReady(boolean radioReady) {
-        if (!mIsRadioReady && radioReady) {
-            mHandler.removeCallbacks(mRadioTimeoutRunnable);
+    public RadioStateTracker getRadioStateTracker() {
+        return mRadioStateTracker;
+    }
+
+    public DeviceCapabilities getDeviceCapabilities() {
+        return mDeviceCapabilities;
+    }
+
+    /**
+     * @return The current telephony snapshot, captured on first use after a sim state change
+     */
+    public TelephonySnapshot getTelephonySnapshot() {
+        TelephonySnapshot snapshot = mTelephonySnapshot;
+        if (snapshot != null) {
+            return snapshot;
+        }
+        synchronized (mTelephonySnapshotCaptureLock) {
+            while (true) {
+                final int generation;
+                synchronized (mTelephonySnapshotLock) {
+                    if (mTelephonySnapshot != null) {
+                        return mTelephonySnapshot;
+                    }
+                    generation = mTelephonySnapshotGeneration;
+                }
+                // Captured without holding mTelephonySnapshotLock, so invalidating never
+                // waits on the binder calls
+                snapshot = TelephonySnapshot.capture(this);
+                synchronized (mTelephonySnapshotLock) {
+                    if (generation == mTelephonySnapshotGeneration) {
+                        mTelephonySnapshot = snapshot;
+                        return snapshot;
+                    }
+                }
+                // The sim state changed while capturing, the snapshot may predate it
+            }
+        }
+    }
+
+    public void invalidateTelephonySnapshot() {
+        synchronized (mTelephonySnapshotLock) {
+            mTelephonySnapshotGeneration++;
+            mTelephonySnapshot = null;
         }
-        mIsRadioReady = radioReady;
     }
 
     public static SetupWizardApp get() {
@@ -136,13 +267,74 @@ public class SetupWizardApp extends Application {
         mStatusBarManager.disable(StatusBarManager.DISABLE_NONE);
     }
 
+    public SettingsBatch getSettingsBatch() {
+        return mSettingsBatch;
+    }
+
+    /**
+     * @return The setup progress journal, shared by every setup data instance of the process
+     * so its writes and replays are serialized on one thread
+     */
+    public synchronized ProgressJournal getProgressJournal() {
+        if (mProgressJournal == null) {
+            mProgressJournal = new ProgressJournal(this);
+        }
+        return mProgressJournal;
+    }
+
+    /**
+     * @return The captive portal probe, racing the configured server and the default ones.
+     * Reads settings and the stored latencies when first called, so not for the main thread.
+     */
+    public synchronized CaptivePortalProbe getCaptivePortalProbe() {
+        if (mCaptivePortalProbe == null) {
+            final ArrayList<String> servers = new ArrayList<>();
+            final String server = Settings.Global.getString(getContentResolver(),
+                    "captive_portal_server");
+            if (server != null) {
+                servers.add(server);
+            }
+            for (String defaultServer : CAPTIVE_PORTAL_SERVERS) {
+                if (!servers.contains(defaultServer)) {
+                    servers.add(defaultServer);
+                }
+            }
+            final ArrayList<URL> endpoints = new ArrayList<>(servers.size());
+            for (String host : servers) {
+                try {
+                    endpoints.add(new URL("http://" + host + "/generate_204"));
+                } catch (MalformedURLException e) {
+                    Log.e(TAG, "Not a valid captive portal server " + host, e);
+                }
+            }
+            // One thread per endpoint, so a hanging server neither holds up the race nor
+            // the shared pool
+            final int threads = Math.max(1, endpoints.size());
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "CaptivePortalProbe #"
+                                    + mCount.incrementAndGet());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            final ProbeLatencyStore store = new ProbeLatencyStore(this);
+            mCaptivePortalProbe = new CaptivePortalProbe(endpoints, executor,
+                    CAPTIVE_PORTAL_VERDICT_TTL_MS, store.load(), store);
+        }
+        return mCaptivePortalProbe;
+    }
+
     public void disableCaptivePortalDetection() {
-        Settings.Global.putInt(getContentResolver(),
+        mSettingsBatch.putInt(SettingsBatch.NAMESPACE_GLOBAL,
                 Settings.Global.CAPTIVE_PORTAL_DETECTION_ENABLED, 0);
     }
 
     public void enableCaptivePortalDetection() {
-        Settings.Global.putInt(getContentResolver(),
+        mSettingsBatch.putInt(SettingsBatch.NAMESPACE_GLOBAL,
                 Settings.Global.CAPTIVE_PORTAL_DETECTION_ENABLED, 1);
     }
 
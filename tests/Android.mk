@@ -12,6 +12,6 @@ LOCAL_SRC_FILES := $(call all-java-files-under, src)
 LOCAL_PACKAGE_NAME := CyanogenSetupWizardTests
 LOCAL_CERTIFICATE := platform
 
-LOCAL_INSTRUMENTATION_FOR := CyanogenSetupWizard
+LOCAL_INSTRUMENTATION_FOR := NamelessSetupWizard
 
 include $(BUILD_PACKAGE)
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.tests;
+
+import com.cyanogenmod.setupwizard.util.CaptivePortalProbe;
+import com.cyanogenmod.setupwizard.util.LatencyHistogram;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Races the probe against a local HTTP stub. Paths: /open answers 204, /portal redirects,
+ * /page answers 200 with a body, /gateway answers 504, /error answers 500, /slow answers 204
+ * after a delay, and /hang does not answer before the probe gives up.
+ */
+public class CaptivePortalProbeTest extends TestCase {
+
+    private static final long SLOW_DELAY_MS = 3000;
+    private static final long HANG_DELAY_MS = 3 * CaptivePortalProbe.MAX_TIMEOUT_MS;
+    private static final long VERDICT_TTL_MS = 60 * 1000;
+
+    private StubServer mServer;
+    private ExecutorService mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubServer();
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testOpenOn204() throws Exception {
+        assertFalse(probe(newProbe("/open"), "net"));
+    }
+
+    public void testPortalOnRedirect() throws Exception {
+        assertTrue(probe(newProbe("/portal"), "net"));
+    }
+
+    public void testPortalOn200WithBody() throws Exception {
+        assertTrue(probe(newProbe("/page"), "net"));
+    }
+
+    public void testPortalOnGatewayTimeout() throws Exception {
+        assertTrue(probe(newProbe("/gateway"), "net"));
+    }
+
+    public void testFastPortalWinsOverSlowOpen() throws Exception {
+        final long start = System.nanoTime();
+        assertTrue(probe(newProbe("/slow", "/portal"), "net"));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < SLOW_DELAY_MS);
+    }
+
+    public void testErrorDoesNotDecide() throws Exception {
+        assertFalse(probe(newProbe("/error", "/slow"), "net"));
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    public void testVerdictIsCachedPerNetwork() throws Exception {
+        final CaptivePortalProbe probe = newProbe("/portal");
+        assertTrue(probe(probe, "net"));
+        assertTrue(probe(probe, "net"));
+        assertEquals(1, mServer.getRequestCount());
+
+        probe.invalidate("net");
+        assertTrue(probe(probe, "net"));
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    public void testTimeoutGrowsAfterTimedOutProbe() throws Exception {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        for (int i = 0; i < 20; i++) {
+            latencies.record(10);
+        }
+        final CaptivePortalProbe probe = newProbe(latencies, "/hang");
+        assertEquals(CaptivePortalProbe.MIN_TIMEOUT_MS, probe.getTimeoutMs());
+
+        assertFalse(probe(probe, "net", HANG_DELAY_MS));
+        assertTrue(probe.getTimeoutMs() > CaptivePortalProbe.MIN_TIMEOUT_MS);
+    }
+
+    private CaptivePortalProbe newProbe(String... paths) throws MalformedURLException {
+        return newProbe(new LatencyHistogram(), paths);
+    }
+
+    private CaptivePortalProbe newProbe(LatencyHistogram latencies, String... paths)
+            throws MalformedURLException {
+        final ArrayList<URL> endpoints = new ArrayList<>();
+        for (String path : paths) {
+            endpoints.add(new URL("http", "127.0.0.1", mServer.getPort(), path));
+        }
+        return new CaptivePortalProbe(endpoints, mExecutor, VERDICT_TTL_MS, latencies, null);
+    }
+
+    private static boolean probe(CaptivePortalProbe probe, String networkKey)
+            throws InterruptedException {
+        return probe(probe, networkKey, 2 * SLOW_DELAY_MS);
+    }
+
+    private static boolean probe(CaptivePortalProbe probe, String networkKey, long waitMs)
+            throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] result = new boolean[1];
+        probe.probe(networkKey, new CaptivePortalProbe.Callback() {
+            @Override
+            public void onResult(boolean isCaptivePortal) {
+                result[0] = isCaptivePortal;
+                done.countDown();
+            }
+        });
+        assertTrue("no verdict", done.await(waitMs, TimeUnit.MILLISECONDS));
+        return result[0];
+    }
+
+    /**
+     * Answers every request on its own thread and closes the connection afterwards.
+     */
+    private static final class StubServer implements Runnable {
+
+        private final ServerSocket mSocket;
+        private final Thread mThread;
+        private final AtomicInteger mRequests = new AtomicInteger();
+
+        StubServer() throws IOException {
+            mSocket = new ServerSocket(0);
+            mThread = new Thread(this, "StubServer");
+            mThread.start();
+        }
+
+        int getPort() {
+            return mSocket.getLocalPort();
+        }
+
+        int getRequestCount() {
+            return mRequests.get();
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mSocket.isClosed()) {
+                final Socket client;
+                try {
+                    client = mSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        private void serve(Socket client) {
+            try {
+                final BufferedReader in = new BufferedReader(
+                        new InputStreamReader(client.getInputStream(), "US-ASCII"));
+                final String requestLine = in.readLine();
+                String header;
+                do {
+                    header = in.readLine();
+                } while (header != null && !header.isEmpty());
+                if (requestLine == null) {
+                    return;
+                }
+                mRequests.incrementAndGet();
+                final String path = requestLine.split(" ")[1];
+                final String response;
+                if ("/open".equals(path)) {
+                    response = "HTTP/1.1 204 No Content\r\n\r\n";
+                } else if ("/portal".equals(path)) {
+                    response = "HTTP/1.1 302 Found\r\nLocation: http://login.example/\r\n"
+                            + "Content-Length: 0\r\n\r\n";
+                } else if ("/page".equals(path)) {
+                    response = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nlogin";
+                } else if ("/gateway".equals(path)) {
+                    response = "HTTP/1.1 504 Gateway Timeout\r\nContent-Length: 0\r\n\r\n";
+                } else if ("/error".equals(path)) {
+                    response = "HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\n\r\n";
+                } else if ("/hang".equals(path)) {
+                    Thread.sleep(HANG_DELAY_MS);
+                    response = "HTTP/1.1 204 No Content\r\n\r\n";
+                } else {
+                    Thread.sleep(SLOW_DELAY_MS);
+                    response = "HTTP/1.1 204 No Content\r\n\r\n";
+                }
+                final OutputStream out = client.getOutputStream();
+                out.write(response.getBytes("US-ASCII"));
+                out.flush();
+            } catch (IOException | InterruptedException e) {
+                // The probe gave up on this request
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.tests;
+
+import com.cyanogenmod.setupwizard.util.SettingsBatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Settings backend keeping the values in memory, and the writes of every apply in order.
+ */
+public final class InMemorySettingsBackend implements SettingsBatch.Backend {
+
+    private final HashMap<String, String> mValues = new HashMap<>();
+    private final ArrayList<List<SettingsBatch.Write>> mApplied = new ArrayList<>();
+
+    @Override
+    public synchronized void apply(List<SettingsBatch.Write> writes) {
+        mApplied.add(new ArrayList<>(writes));
+        for (SettingsBatch.Write write : writes) {
+            mValues.put(write.namespace + "/" + write.key, write.value);
+        }
+    }
+
+    public synchronized String get(int namespace, String key) {
+        return mValues.get(namespace + "/" + key);
+    }
+
+    public synchronized int getApplyCount() {
+        return mApplied.size();
+    }
+
+    /**
+     * @return The writes handed to the given call of {@link #apply(List)}
+     */
+    public synchronized List<SettingsBatch.Write> getApplied(int index) {
+        return mApplied.get(index);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.tests;
+
+import android.util.Log;
+
+import com.cyanogenmod.setupwizard.setup.Page;
+import com.cyanogenmod.setupwizard.setup.PageList;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+
+/**
+ * Keeps the positional index of {@link PageList} honest, and compares its positional lookup
+ * with walking the values like the list used to, at 10, 100 and 1000 pages.
+ */
+public class PageListTest extends TestCase {
+
+    private static final String TAG = PageListTest.class.getSimpleName();
+
+    private static final int[] BENCHMARK_SIZES = { 10, 100, 1000 };
+    private static final int BENCHMARK_LOOKUPS = 200000;
+
+    public void testPositionsFollowInsertionOrder() {
+        final PageList list = newPageList(5);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("page" + i, list.getPage(i).getKey());
+        }
+        assertNull(list.getPage(-1));
+        assertNull(list.getPage(5));
+    }
+
+    public void testReplaceKeepsPosition() {
+        final PageList list = newPageList(3);
+        final Page replacement = newPage("page1");
+        list.put("page1", replacement);
+        assertSame(replacement, list.getPage(1));
+        assertEquals(3, list.size());
+    }
+
+    public void testRemoveShiftsLaterPositions() {
+        final PageList list = newPageList(4);
+        list.remove("page1");
+        assertEquals("page2", list.getPage(1).getKey());
+        assertEquals("page3", list.getPage(2).getKey());
+        assertNull(list.getPage(3));
+
+        // The key positions moved along, replacing still hits the right slot
+        final Page replacement = newPage("page3");
+        list.put("page3", replacement);
+        assertSame(replacement, list.getPage(2));
+    }
+
+    public void testViewsAreReadOnly() {
+        final PageList list = newPageList(3);
+        try {
+            list.values().remove(list.getPage(0));
+            fail("values() must not allow removal");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            list.keySet().remove("page0");
+            fail("keySet() must not allow removal");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        final Iterator<?> it = list.entrySet().iterator();
+        it.next();
+        try {
+            it.remove();
+            fail("entrySet() iterators must not allow removal");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertEquals("page0", list.getPage(0).getKey());
+    }
+
+    public void testPositionalLookupBenchmark() {
+        for (int size : BENCHMARK_SIZES) {
+            final PageList list = newPageList(size);
+            // Warm up both paths before timing them
+            lookupByIndex(list, size, BENCHMARK_LOOKUPS / 10);
+            lookupByWalk(list, size, BENCHMARK_LOOKUPS / 10);
+
+            long start = System.nanoTime();
+            final int indexed = lookupByIndex(list, size, BENCHMARK_LOOKUPS);
+            final long indexNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            final int walked = lookupByWalk(list, size, BENCHMARK_LOOKUPS);
+            final long walkNanos = System.nanoTime() - start;
+
+            assertEquals(walked, indexed);
+            Log.i(TAG, String.format("%d pages: getPage(int)=%.1fns walk=%.1fns per lookup",
+                    size, (double) indexNanos / BENCHMARK_LOOKUPS,
+                    (double) walkNanos / BENCHMARK_LOOKUPS));
+        }
+    }
+
+    private static int lookupByIndex(PageList list, int size, int lookups) {
+        int hash = 0;
+        for (int i = 0; i < lookups; i++) {
+            hash += list.getPage(i % size).hashCode();
+        }
+        return hash;
+    }
+
+    // The lookup PageList did before the positional index
+    private static int lookupByWalk(PageList list, int size, int lookups) {
+        int hash = 0;
+        for (int i = 0; i < lookups; i++) {
+            final int index = i % size;
+            int position = 0;
+            for (Page page : list.values()) {
+                if (position++ == index) {
+                    hash += page.hashCode();
+                    break;
+                }
+            }
+        }
+        return hash;
+    }
+
+    private static PageList newPageList(int size) {
+        final Page[] pages = new Page[size];
+        for (int i = 0; i < size; i++) {
+            pages[i] = newPage("page" + i);
+        }
+        return new PageList(pages);
+    }
+
+    /**
+     * @return A page that only knows its key, which is all PageList looks at
+     */
+    private static Page newPage(final String key) {
+        return (Page) Proxy.newProxyInstance(Page.class.getClassLoader(),
+                new Class<?>[] { Page.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "getKey":
+                                return key;
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            case "toString":
+                                return key;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+}
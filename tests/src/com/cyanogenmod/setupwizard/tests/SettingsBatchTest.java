@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 The NamelessRom Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.setupwizard.tests;
+
+import com.cyanogenmod.setupwizard.util.SettingsBatch;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class SettingsBatchTest extends TestCase {
+
+    private InMemorySettingsBackend mBackend;
+    private SettingsBatch mBatch;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBackend = new InMemorySettingsBackend();
+        mBatch = new SettingsBatch(mBackend);
+    }
+
+    public void testCoalescedWriteMovesToItsLatestPosition() {
+        mBatch.putString(SettingsBatch.NAMESPACE_SECURE, "a", "1");
+        mBatch.putString(SettingsBatch.NAMESPACE_SECURE, "b", "2");
+        mBatch.putString(SettingsBatch.NAMESPACE_SECURE, "a", "3");
+        mBatch.commit();
+
+        final List<SettingsBatch.Write> writes = mBackend.getApplied(0);
+        assertEquals(2, writes.size());
+        assertEquals("b", writes.get(0).key);
+        assertEquals("2", writes.get(0).value);
+        assertEquals("a", writes.get(1).key);
+        assertEquals("3", writes.get(1).value);
+        assertEquals("3", mBackend.get(SettingsBatch.NAMESPACE_SECURE, "a"));
+    }
+
+    public void testSameKeyInOtherNamespaceIsNotCoalesced() {
+        mBatch.putInt(SettingsBatch.NAMESPACE_GLOBAL, "key", 1);
+        mBatch.putInt(SettingsBatch.NAMESPACE_SYSTEM, "key", 2);
+        mBatch.commit();
+
+        assertEquals(2, mBackend.getApplied(0).size());
+        assertEquals("1", mBackend.get(SettingsBatch.NAMESPACE_GLOBAL, "key"));
+        assertEquals("2", mBackend.get(SettingsBatch.NAMESPACE_SYSTEM, "key"));
+    }
+
+    public void testCommitWithNothingPendingDoesNotApply() {
+        assertFalse(mBatch.hasPendingWrites());
+        mBatch.commit();
+        assertEquals(0, mBackend.getApplyCount());
+
+        mBatch.putString(SettingsBatch.NAMESPACE_GLOBAL, "key", "value");
+        assertTrue(mBatch.hasPendingWrites());
+        mBatch.commit();
+        assertFalse(mBatch.hasPendingWrites());
+        mBatch.commit();
+        assertEquals(1, mBackend.getApplyCount());
+    }
+
+    public void testOneApplyPerCommit() {
+        mBatch.putString(SettingsBatch.NAMESPACE_GLOBAL, "a", "1");
+        mBatch.putString(SettingsBatch.NAMESPACE_SECURE, "b", "2");
+        mBatch.commit();
+        assertEquals(1, mBackend.getApplyCount());
+
+        mBatch.putString(SettingsBatch.NAMESPACE_GLOBAL, "a", "3");
+        mBatch.commit();
+        assertEquals(2, mBackend.getApplyCount());
+        assertEquals(1, mBackend.getApplied(1).size());
+        assertEquals("3", mBackend.get(SettingsBatch.NAMESPACE_GLOBAL, "a"));
+    }
+}